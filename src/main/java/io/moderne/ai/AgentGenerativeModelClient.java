@@ -22,24 +22,23 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.cfg.ConstructorDetector;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
-import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
-import kong.unirest.UnirestException;
 import lombok.Value;
 import org.jspecify.annotations.Nullable;
 import org.openrewrite.ipc.http.HttpSender;
 import org.openrewrite.ipc.http.HttpUrlConnectionSender;
 
 import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class AgentGenerativeModelClient {
     @Nullable
@@ -50,14 +49,71 @@ public class AgentGenerativeModelClient {
             .build()
             .registerModule(new ParameterNamesModule())
             .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
-    private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(3);
     static String pathToModel = "/MODELS/qwencoder.gguf";
     static String pathToLLama = "/app/llama.cpp";
     static String maxContextLength = "1024";
     static String pathToFiles = "/app/";
     static String port = "7878";
 
-    public static synchronized AgentGenerativeModelClient getInstance() {
+    /**
+     * Requests are not pinned to a slot, since concurrent requests of the same prompt family would
+     * then wait for each other. With {@code cache_prompt}, llama-server gives a request the idle slot
+     * whose cached prompt is the most similar to it, so every slot that served a family keeps the KV
+     * cache of its constant prefix. There are at least as many slots as prompt families.
+     */
+    private static final int SLOTS = 2;
+
+    private static final String RELATEDNESS_PROMPT_PREFIX = "<|im_start|>system\nYou are tasked with predicting whether a certain code snippet matches the search query. Answer as 'ANS: Yes' or 'ANS: No'<|im_end|>\n" +
+                                                            "<|im_start|>user\n";
+    private static final String RELATEDNESS_PROMPT_SUFFIX = "'\n<|im_end|>\n<|im_start|>assistant\nANS:";
+    private static final String RECOMMENDATIONS_PROMPT_SUFFIX = "```\n<|im_end|>\n<|im_start|>assistant\n1.";
+    private static final int RECOMMENDATIONS_PREDICT = 150;
+
+    /**
+     * Tokens kept free in the context, since tokenizing the prompt in parts may not give exactly
+     * the same tokens as tokenizing it as a whole.
+     */
+    private static final int CONTEXT_MARGIN = 8;
+
+    /**
+     * Grammars constrain the completions to the expected shape, so that the model can't spend
+     * tokens on anything else and the output can be parsed in a single pass.
+     */
+    private static final String RELATEDNESS_GRAMMAR = "root ::= \" Yes\" | \" No\"\n";
+    private static final int MAX_RECOMMENDATIONS = 10;
+    private static final int MAX_RECOMMENDATION_LENGTH = 120;
+
+    @Nullable
+    private String recommendationsPromptPrefix;
+
+    private final LlamaServerPool servers;
+
+    private final Map<String, Integer> prefixTokenCounts = Collections.synchronizedMap(new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > 100;
+        }
+    });
+
+    private AgentGenerativeModelClient(int slots) {
+        // the context is shared by the slots of a server
+        servers = new LlamaServerPool(
+                pathToLLama + "/llama-server -m " + pathToModel +
+                " -c " + Integer.parseInt(maxContextLength) * slots + " -np " + slots + " --metrics",
+                Integer.parseInt(port), LlamaServerPool.configuredReplicas());
+    }
+
+    public static AgentGenerativeModelClient getInstance() {
+        return getInstance(1);
+    }
+
+    /**
+     * @param concurrentRequests how many requests the caller sends at the same time. The servers
+     *                           are started with enough slots for them, so that they are generated
+     *                           together rather than one after the other. Servers that are already
+     *                           running are not resized.
+     */
+    public static synchronized AgentGenerativeModelClient getInstance(int concurrentRequests) {
         if (INSTANCE == null) {
             //Check if llama.cpp is already built
             File f = new File(pathToLLama + "/llama-server");
@@ -82,73 +138,39 @@ public class AgentGenerativeModelClient {
                 }
             }
 
-            INSTANCE = new AgentGenerativeModelClient();
-
-            //Start server
-            if (INSTANCE.checkForUpRequest() != 200) {
-                StringWriter sw = new StringWriter();
-                PrintWriter procOut = new PrintWriter(sw);
-                try {
-                    Runtime runtime = Runtime.getRuntime();
-                    Process proc_server = runtime.exec((new String[]
-                            {"/bin/sh", "-c", pathToLLama + "/llama-server -m " + pathToModel + " --port " + port +
-                                    " -c " + maxContextLength + " --metrics"}));
-
-                    EXECUTOR_SERVICE.submit(() -> {
-                        new BufferedReader(new InputStreamReader(proc_server.getInputStream())).lines()
-                                .forEach(procOut::println);
-                        new BufferedReader(new InputStreamReader(proc_server.getErrorStream())).lines()
-                                .forEach(procOut::println);
-                    });
-
-                    if (!INSTANCE.checkForUp()) {
-                        throw new RuntimeException("Failed to start server\n" + sw);
-                    }
-
-                } catch (IOException e) {
-                    throw new RuntimeException(e + "\nOutput: " + sw);
-                }
-            }
+            INSTANCE = new AgentGenerativeModelClient(slotsPerReplica(concurrentRequests, LlamaServerPool.configuredReplicas()));
 
+            //Start servers
+            INSTANCE.servers.start();
+            new LlamaServerMetrics(INSTANCE.servers).start();
             return INSTANCE;
         }
         return INSTANCE;
     }
 
-    private int checkForUpRequest() {
-        try {
-            HttpResponse<String> response = Unirest.head("http://127.0.0.1:" + port).asString();
-            return response.getStatus();
-        } catch (UnirestException e) {
-            return 523;
-        }
+    static int slotsPerReplica(int concurrentRequests, int replicas) {
+        return Math.max(SLOTS, (concurrentRequests + replicas - 1) / replicas);
     }
 
-    private boolean checkForUp() {
-        for (int i = 0; i < 60; i++) {
-            try {
-                if (checkForUpRequest() == 200) {
-                    return true;
+    private synchronized String getRecommendationsPromptPrefix() throws IOException {
+        if (recommendationsPromptPrefix == null) {
+            StringBuilder promptContent = new StringBuilder("<|im_start|>user\n");
+            try (BufferedReader bufferedReader = new BufferedReader(new FileReader(pathToFiles + "prompt.txt"))) {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    promptContent.append(line).append("\n");
                 }
-                Thread.sleep(1_000);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
             }
+            recommendationsPromptPrefix = promptContent.toString();
         }
-        return false;
+        return recommendationsPromptPrefix;
     }
 
-    public ArrayList<String> getRecommendations(String code) {
-        try (
-                BufferedReader bufferedReader = new BufferedReader(new FileReader(pathToFiles + "prompt.txt"))
-        ) {
-            // Write a temporary file for input which includes prompt and relevant code snippet
-            String line;
-            StringBuilder promptContent = new StringBuilder();
-            while ((line = bufferedReader.readLine()) != null) {
-                promptContent.append(line).append("\n");
-            }
-            String text = "<|im_start|>user\n" + promptContent + code + "```\n<|im_end|>\n<|im_start|>assistant\n1.";
+    public GeneratedRecommendations getRecommendations(String code) {
+        try {
+            // The prompt template comes first so that its KV cache can be reused across requests
+            String text = fitToContext(getRecommendationsPromptPrefix(), code, RECOMMENDATIONS_PROMPT_SUFFIX,
+                    RECOMMENDATIONS_PREDICT).getText();
             HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(90));
             HttpSender.Response raw;
 
@@ -156,74 +178,210 @@ public class AgentGenerativeModelClient {
             input.put("stream", false);
             input.put("prompt", text);
             input.put("temperature", 0.5);
-            input.put("n_predict", 150);
+            input.put("n_predict", RECOMMENDATIONS_PREDICT);
+            input.put("cache_prompt", true);
+            input.put("grammar", recommendationsGrammar(MAX_RECOMMENDATIONS));
 
+            LlamaServerPool.Replica replica = servers.acquire();
             try {
                 raw = http
-                        .post("http://127.0.0.1:" + port + "/completion")
+                        .post(replica.url("/completion"))
                         .withContent("application/json",
                                 mapper.writeValueAsBytes(input)).send();
             } catch (JsonProcessingException e) {
                 throw new RuntimeException(e);
+            } finally {
+                servers.release(replica);
             }
 
 
             if (!raw.isSuccessful()) {
                 throw new IllegalStateException("Unable to get recommendations. HTTP " + raw.getClass());
             }
-            String textResponse;
-            textResponse = mapper.readValue(raw.getBodyAsBytes(), LlamaResponse.class).getResponse();
+            LlamaResponse response = mapper.readValue(raw.getBodyAsBytes(), LlamaResponse.class);
+            return new GeneratedRecommendations(parseRecommendations("1." + response.getResponse()),
+                    response.getTokensEvaluated(), response.getTokensPredicted());
 
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stream the completion and parse recommendations as they are generated, stopping the
+     * generation as soon as {@code maxRecommendations} recommendations are complete.
+     */
+    public GeneratedRecommendations getRecommendations(String code, int maxRecommendations) {
+        HttpURLConnection connection = null;
+        LlamaServerPool.Replica replica = null;
+        try {
+            Prompt prompt = fitToContext(getRecommendationsPromptPrefix(), code, RECOMMENDATIONS_PROMPT_SUFFIX,
+                    RECOMMENDATIONS_PREDICT);
 
-            ArrayList<String> recommendations = parseRecommendations("1." + textResponse);
+            HashMap<String, Object> input = new HashMap<>();
+            input.put("stream", true);
+            input.put("prompt", prompt.getText());
+            input.put("temperature", 0.5);
+            input.put("n_predict", RECOMMENDATIONS_PREDICT);
+            input.put("cache_prompt", true);
+            input.put("grammar", recommendationsGrammar(maxRecommendations));
+
+            replica = servers.acquire();
+            connection = (HttpURLConnection) new URL(replica.url("/completion")).openConnection();
+            connection.setConnectTimeout(20_000);
+            connection.setReadTimeout(90_000);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(mapper.writeValueAsBytes(input));
+            }
+            if (connection.getResponseCode() != 200) {
+                throw new IllegalStateException("Unable to get recommendations. HTTP " + connection.getResponseCode());
+            }
 
-            if (recommendations.isEmpty()) {
-                BufferedReader bufferedReaderLog = new BufferedReader(new FileReader(pathToFiles + "llama_log.txt"));
-                String logLine;
-                StringBuilder logContent = new StringBuilder();
-                while ((logLine = bufferedReaderLog.readLine()) != null) {
-                    logContent.append(logLine).append("\n");
+            RecommendationParser parser = new RecommendationParser().feed("1.");
+            int promptTokens = prompt.getTokens();
+            int generatedTokens = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // server-sent events, one generated token per event
+                    if (!line.startsWith("data: ")) {
+                        continue;
+                    }
+                    LlamaStreamResponse event = mapper.readValue(line.substring(6), LlamaStreamResponse.class);
+                    // the final stop event may carry no content
+                    String content = event.getContent();
+                    parser.feed(content == null ? "" : content);
+                    if (event.getTokensEvaluated() > 0) {
+                        // recent servers report it with every token, older ones only with the stop event
+                        promptTokens = event.getTokensEvaluated();
+                    }
+                    if (event.isStop()) {
+                        generatedTokens = event.getTokensPredicted();
+                        break;
+                    }
+                    generatedTokens++;
+                    if (parser.getItems().size() >= maxRecommendations) {
+                        break;
+                    }
                 }
-                bufferedReaderLog.close();
-                throw new RuntimeException("Logs: " + logContent);
             }
+            ArrayList<String> recommendations = parser.finish();
+            if (recommendations.size() > maxRecommendations) {
+                recommendations = new ArrayList<>(recommendations.subList(0, maxRecommendations));
+            }
+            return new GeneratedRecommendations(recommendations, promptTokens, generatedTokens);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (connection != null) {
+                // closes the connection when stopping early, which cancels the generation
+                connection.disconnect();
+            }
+            if (replica != null) {
+                servers.release(replica);
+            }
+        }
+    }
 
-            return recommendations;
+    /**
+     * Trim the code so that the prompt made of the prefix, the code and the suffix, plus the
+     * tokens to predict, fit in the context of a server slot.
+     */
+    private Prompt fitToContext(String prefix, String code, String suffix, int predict) {
+        int templateTokens = prefixTokenCounts.computeIfAbsent(prefix, p -> tokenize(p).size()) +
+                             prefixTokenCounts.computeIfAbsent(suffix, p -> tokenize(p).size());
+        int budget = Integer.parseInt(maxContextLength) - predict - CONTEXT_MARGIN - templateTokens;
+        if (budget <= 0) {
+            throw new IllegalStateException("The prompt template takes " + templateTokens + " tokens, which leaves no room " +
+                                            "for the code in a context of " + maxContextLength + " tokens");
+        }
+        // every token of a byte-level BPE vocabulary covers at least one byte
+        int bytes = code.getBytes(UTF_8).length;
+        if (bytes <= budget) {
+            return new Prompt(prefix + code + suffix, templateTokens + bytes);
+        }
+        List<Integer> tokens = tokenize(code);
+        if (tokens.size() <= budget) {
+            return new Prompt(prefix + code + suffix, templateTokens + tokens.size());
+        }
+        return new Prompt(prefix + detokenize(tokens.subList(0, budget)) + suffix, templateTokens + budget);
+    }
+
+    private List<Integer> tokenize(String text) {
+        HashMap<String, Object> input = new HashMap<>();
+        input.put("content", text);
+        return post("/tokenize", input, LlamaTokens.class).getTokens();
+    }
+
+    private String detokenize(List<Integer> tokens) {
+        HashMap<String, Object> input = new HashMap<>();
+        input.put("tokens", tokens);
+        return post("/detokenize", input, LlamaResponse.class).getResponse();
+    }
 
+    private <T> T post(String path, Object input, Class<T> responseType) {
+        HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(30));
+        LlamaServerPool.Replica replica = servers.acquire();
+        try (HttpSender.Response raw = http
+                .post(replica.url(path))
+                .withContent("application/json", mapper.writeValueAsBytes(input))
+                .send()) {
+            if (!raw.isSuccessful()) {
+                throw new IllegalStateException("Unable to call " + path + ". HTTP " + raw.getCode());
+            }
+            return mapper.readValue(raw.getBodyAsBytes(), responseType);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            servers.release(replica);
+        }
+    }
+
+    /**
+     * The completion continues the {@code 1.} that ends the prompt with a bounded number of short,
+     * sequentially numbered, single line recommendations.
+     */
+    static String recommendationsGrammar(int maxRecommendations) {
+        String more = "";
+        for (int i = maxRecommendations; i >= 2; i--) {
+            more = " (\"\\n" + i + ". \" item" + more + ")?";
         }
+        return "root ::= \" \" item" + more + "\n" +
+               "item ::= [^\\n ] [^\\n]{0," + (MAX_RECOMMENDATION_LENGTH - 1) + "}\n";
     }
 
     public ArrayList<String> parseRecommendations(String recommendations) {
         if (recommendations.equals("[]")) {
             return new ArrayList<>();
-        } else {
-            String patternString = "\\b\\d+[.:\\-]\\s+(.*?)\\s*(?=\\b\\d+[.:\\-]|\\Z)";
-            Pattern pattern = Pattern.compile(patternString, Pattern.DOTALL);
-            Matcher matcher = pattern.matcher(recommendations);
-            ArrayList<String> matches = new ArrayList<>();
-            while (matcher.find()) {
-                matches.add(matcher.group(1));
-            }
-            return matches;
         }
+        return new RecommendationParser().feed(recommendations).finish();
     }
 
     public TimedRelatedness isRelatedTiming(String query, String code, double threshold) {
         long start = System.nanoTime();
-        boolean isRelated = isRelated(query, code, threshold);
+        double probability = getRelatedProbability(query, code);
         Duration duration = Duration.ofNanos(System.nanoTime() - start);
-        return new TimedRelatedness(isRelated, duration);
+        return new TimedRelatedness(probability >= threshold, probability, duration);
     }
 
     public boolean isRelated(String query, String code, double threshold) {
-        String promptContent = "<|im_start|>system\nYou are tasked with predicting whether a certain code snippet matches the search query. Answer as 'ANS: Yes' or 'ANS: No'<|im_end|>\n";
-        promptContent += "<|im_start|>user\n";
-        promptContent += "Code: '" + code + "'\n";
-        promptContent += "Query: " + query + "\n";
-        promptContent += "<|im_end|>\n<|im_start|>assistant\n";
-        promptContent += "ANS:";
+        return getRelatedProbability(query, code) >= threshold;
+    }
+
+    /**
+     * @return the probability the model gives to the code snippet matching the query, so that
+     * it can be compared against any threshold without calling the model again.
+     */
+    public double getRelatedProbability(String query, String code) {
+        // The query is the same for every snippet of a recipe run, so it goes before the code
+        // to extend the prefix whose KV cache is reused
+        String prefix = RELATEDNESS_PROMPT_PREFIX +
+                        "Query: " + query + "\n" +
+                        "Code: '";
+        String promptContent = fitToContext(prefix, code, RELATEDNESS_PROMPT_SUFFIX, 1).getText();
         HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(60));
         HttpSender.Response raw;
 
@@ -233,38 +391,76 @@ public class AgentGenerativeModelClient {
         input.put("temperature", -0.00001); // temperature at 0, makes the model's probabilities only 0 or 1
         input.put("n_predict", 1);
         input.put("n_probs", 5);
+        input.put("cache_prompt", true);
+        input.put("grammar", RELATEDNESS_GRAMMAR);
 
+        LlamaServerPool.Replica replica = servers.acquire();
         try {
             raw = http
-                    .post("http://127.0.0.1:" + port + "/completion")
+                    .post(replica.url("/completion"))
                     .withContent("application/json",
                             mapper.writeValueAsBytes(input)).send();
 
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
+        } finally {
+            servers.release(replica);
         }
 
         if (!raw.isSuccessful()) {
             throw new IllegalStateException("Unable to get response from server. HTTP " + raw.getClass());
         }
-        boolean relatedResponse;
         try {
-            relatedResponse = mapper.readValue(raw.getBodyAsBytes(), LlamaResponseProbabilities.class).isRelated(threshold);
+            return mapper.readValue(raw.getBodyAsBytes(), LlamaResponseProbabilities.class).getRelatedProbability();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-
-        return relatedResponse;
     }
+    @Value
+    private static class Prompt {
+        String text;
+
+        /**
+         * The tokens of the prompt, counted without calling the server. When the code is short
+         * enough to fit without being tokenized, its length in bytes is counted instead, which is
+         * an upper bound.
+         */
+        int tokens;
+    }
+
     @Value
     private static class LlamaResponse {
         String content;
 
+        @JsonProperty("tokens_evaluated")
+        int tokensEvaluated;
+
+        @JsonProperty("tokens_predicted")
+        int tokensPredicted;
+
         public String getResponse() {
             return content;
         }
     }
 
+    @Value
+    private static class LlamaStreamResponse {
+        @Nullable
+        String content;
+        boolean stop;
+
+        @JsonProperty("tokens_evaluated")
+        int tokensEvaluated;
+
+        @JsonProperty("tokens_predicted")
+        int tokensPredicted;
+    }
+
+    @Value
+    private static class LlamaTokens {
+        List<Integer> tokens;
+    }
+
     @Value
     public static class LlamaResponseProbabilities {
         List<CompletionProbability> completionProbabilities;
@@ -279,12 +475,33 @@ public class AgentGenerativeModelClient {
         }
 
         public boolean isRelated(double threshold) {
-            for (CompletionProbability cp : completionProbabilities) {
-                if (cp.getContent().equals(" Yes")) {
-                    return cp.getProbs().get(0).getProb() >= threshold;
+            return getRelatedProbability() >= threshold;
+        }
+
+        /**
+         * @return the probability of answering " Yes" rather than " No", from the probabilities of
+         * both answers as the first token. Since it is their ratio, it is the same whether or not
+         * the grammar renormalized the distribution over the two answers, and whatever the other
+         * tokens the prompt makes likely, so that it is compared to 0.5 rather than a calibrated cutoff.
+         */
+        public double getRelatedProbability() {
+            if (completionProbabilities.isEmpty()) {
+                return 0;
+            }
+            CompletionProbability answer = completionProbabilities.get(0);
+            double yes = 0;
+            double no = 0;
+            for (TokenProbability probability : answer.getProbs()) {
+                if (" Yes".equals(probability.getTokStr())) {
+                    yes = probability.getProb();
+                } else if (" No".equals(probability.getTokStr())) {
+                    no = probability.getProb();
                 }
             }
-            return false;
+            if (yes + no == 0) {
+                return " Yes".equals(answer.getContent()) ? 1 : 0;
+            }
+            return yes / (yes + no);
         }
     }
 
@@ -303,6 +520,8 @@ public class AgentGenerativeModelClient {
     @Value
     public static class TokenProbability {
         double prob;
+
+        @JsonProperty("tok_str")
         String tokStr;
 
         public double getProb() {
@@ -311,9 +530,17 @@ public class AgentGenerativeModelClient {
 
     }
 
+    @Value
+    public static class GeneratedRecommendations {
+        List<String> recommendations;
+        int promptTokens;
+        int generatedTokens;
+    }
+
     @Value
     public static class TimedRelatedness {
         boolean isRelated;
+        double probability;
         Duration duration;
     }
 }
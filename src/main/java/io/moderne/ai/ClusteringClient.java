@@ -29,13 +29,17 @@ import org.openrewrite.ipc.http.HttpSender;
 import org.openrewrite.ipc.http.HttpUrlConnectionSender;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -60,16 +64,32 @@ public class ClusteringClient {
         }
     }
 
+    /**
+     * Seed of k-means, so that the same embeddings are always sampled the same way.
+     */
+    private static final long SEED = 0;
+
     public static synchronized ClusteringClient getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new ClusteringClient();
-            if (INSTANCE.checkForUpRequest() != 200) {
-                INSTANCE.start();
-            }
         }
         return INSTANCE;
     }
 
+    /**
+     * Clustering is done in the JVM, unless the {@code moderne.ai.clustering.backend} system property
+     * is set to {@code python} to use the scikit-learn sidecar.
+     */
+    private static boolean usePython() {
+        return "python".equals(System.getProperty("moderne.ai.clustering.backend"));
+    }
+
+    private synchronized void ensureStarted() {
+        if (checkForUpRequest() != 200) {
+            start();
+        }
+    }
+
     private void start() {
         Path pyLauncher = MODELS_DIR.resolve("get_centers.py");
         try {
@@ -119,35 +139,91 @@ public class ClusteringClient {
         }
     }
 
-    public String embeddingsToString(List<float[]> embeddings) {
-        StringBuilder embeddingsToString = new StringBuilder();
-        for (int i = 0; i < embeddings.size(); i++) {
-            // Convert each float array to a string and append it
-            embeddingsToString.append(Arrays.toString(embeddings.get(i)));
-            // Add a comma only if it's not the last element
-            if (i < embeddings.size() - 1) {
-                embeddingsToString.append(",");
+    public int[] getCenters(List<float[]> embeddings, int numberOfCenters) {
+        try (EmbeddingMatrix matrix = new EmbeddingMatrix()) {
+            for (float[] embedding : embeddings) {
+                matrix.append(embedding);
             }
+            return getCenters(matrix, numberOfCenters);
         }
-        return "[" + embeddingsToString + "]";
     }
 
-    public int[] getCenters(List<float[]> embeddings, int numberOfCenters) {
+    /**
+     * Cluster the embeddings and find the embedding closest to the centroid of each cluster.
+     * Duplicate embeddings are clustered once.
+     *
+     * @param numberOfCenters the number of clusters, or -1 for one cluster per 200 distinct
+     *                        embeddings, with at least 10.
+     * @return the rows of {@code embeddings} closest to each centroid.
+     */
+    public int[] getCenters(EmbeddingMatrix embeddings, int numberOfCenters) {
+        if (usePython()) {
+            return getCentersGradio(embeddings, numberOfCenters);
+        }
+        if (embeddings.size() == 0) {
+            return new int[0];
+        }
+
+        // the rows are clustered in place, without copying them onto the heap
+        int[] indices = embeddings.distinctRows();
+        int k = numberOfCenters == -1 ? Math.max(10, indices.length / 200) : numberOfCenters;
+        k = Math.min(k, indices.length);
+        KMeans kMeans = new KMeans(embeddings.rows(), indices, embeddings.getDims(), SEED);
+        int[] closest = kMeans.closestRows(kMeans.fit(k));
+        for (int c = 0; c < closest.length; c++) {
+            closest[c] = indices[closest[c]];
+        }
+        return closest;
+    }
+
+    private int[] getCentersGradio(EmbeddingMatrix embeddings, int numberOfCenters) {
+        ensureStarted();
+        if (embeddings.size() == 0) {
+            return new int[0];
+        }
+        Path matrix = null;
         HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(30));
-        try (HttpSender.Response raw = http
-                .post("http://127.0.0.1:7876/run/predict")
-                .withContent("application/json",
-                        mapper.writeValueAsBytes(new ClusteringClient.GradioRequest(new Object[]{
-                                embeddingsToString(embeddings),
-                                numberOfCenters})))
-                .send()) {
-            if (!raw.isSuccessful()) {
-                throw new IllegalStateException("Unable to get embedding. HTTP " + raw.getClass());
+        try {
+            // only the shape of the matrix goes through JSON, the sidecar maps the file itself
+            matrix = writeMatrix(embeddings);
+            Map<String, Object> header = new LinkedHashMap<>();
+            header.put("path", matrix.toString());
+            header.put("rows", embeddings.size());
+            header.put("dims", embeddings.getDims());
+            header.put("k", numberOfCenters);
+            try (HttpSender.Response raw = http
+                    .post("http://127.0.0.1:7876/run/predict")
+                    .withContent("application/json",
+                            mapper.writeValueAsBytes(new ClusteringClient.GradioRequest(new Object[]{
+                                    mapper.writeValueAsString(header)})))
+                    .send()) {
+                if (!raw.isSuccessful()) {
+                    throw new IllegalStateException("Unable to get centers. HTTP " + raw.getCode());
+                }
+                return mapper.readValue(raw.getBodyAsBytes(), GradioResponse.class).getCenters();
             }
-            return mapper.readValue(raw.getBodyAsBytes(), GradioResponse.class).getCenters();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (matrix != null) {
+                try {
+                    Files.deleteIfExists(matrix);
+                } catch (IOException ignored) {
+                    // a leftover matrix in the temporary directory is harmless
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the embeddings as a float32 little-endian row-major matrix, which numpy can memory map.
+     */
+    static Path writeMatrix(EmbeddingMatrix embeddings) throws IOException {
+        Path matrix = Files.createTempFile(MODELS_DIR, "embeddings", ".f32");
+        try (FileChannel channel = FileChannel.open(matrix, StandardOpenOption.WRITE)) {
+            embeddings.writeTo(channel);
         }
+        return matrix;
     }
 
     @Value
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A growable matrix of embeddings stored row after row as float32 little-endian, outside of the
+ * heap, so that many embeddings neither fragment the heap nor need an object each. It starts in a
+ * direct buffer and moves to a memory-mapped temporary file once it is larger than the spill
+ * threshold, leaving the paging to the operating system. The number of dimensions is set by the
+ * first row.
+ * <p>
+ * Row views share the memory of the matrix, and are only valid until the next row is appended.
+ * Closing the matrix deletes the file it spilled to.
+ */
+public class EmbeddingMatrix implements Closeable {
+    private static final long DEFAULT_SPILL_BYTES = 64L * 1024 * 1024;
+    private static final int INITIAL_ROWS = 64;
+
+    private final long spillBytes;
+
+    private int dims;
+    private int rows;
+    private int capacity;
+    private ByteBuffer bytes = ByteBuffer.allocateDirect(0);
+    private FloatBuffer floats = bytes.asFloatBuffer();
+
+    @Nullable
+    private FileChannel spill;
+
+    public EmbeddingMatrix() {
+        this(DEFAULT_SPILL_BYTES);
+    }
+
+    EmbeddingMatrix(long spillBytes) {
+        this.spillBytes = spillBytes;
+    }
+
+    /**
+     * @return the index of the appended row.
+     */
+    public int append(float[] embedding) {
+        if (rows == 0 && capacity == 0) {
+            dims = embedding.length;
+        }
+        if (rows == capacity) {
+            grow();
+        }
+        set(rows, embedding);
+        return rows++;
+    }
+
+    public void set(int row, float[] embedding) {
+        if (embedding.length != dims) {
+            throw new IllegalArgumentException("Expected " + dims + " dimensions, got " + embedding.length);
+        }
+        FloatBuffer view = floats.duplicate();
+        view.position(row * dims);
+        view.put(embedding);
+    }
+
+    /**
+     * @return a read-only view of the row, without copying it.
+     */
+    public FloatBuffer row(int row) {
+        checkRow(row);
+        FloatBuffer view = floats.asReadOnlyBuffer();
+        view.position(row * dims).limit((row + 1) * dims);
+        return view.slice();
+    }
+
+    /**
+     * Copy a row into {@code into}, which must have {@link #getDims()} elements.
+     */
+    public float[] get(int row, float[] into) {
+        checkRow(row);
+        FloatBuffer view = floats.duplicate();
+        view.position(row * dims);
+        view.get(into, 0, dims);
+        return into;
+    }
+
+    public float[] get(int row) {
+        return get(row, new float[dims]);
+    }
+
+    /**
+     * @return a read-only view of every row, without copying them, for absolute reads at
+     * {@code row * getDims() + dimension}.
+     */
+    FloatBuffer rows() {
+        FloatBuffer view = floats.asReadOnlyBuffer();
+        view.limit(rows * dims);
+        return view;
+    }
+
+    /**
+     * @return the index of the first occurrence of each distinct row, in order.
+     */
+    public int[] distinctRows() {
+        // open addressing over row indices, so that rows are neither boxed nor copied
+        int[] table = new int[Integer.highestOneBit(Math.max(1, rows * 2 - 1)) << 1];
+        Arrays.fill(table, -1);
+        int[] distinct = new int[rows];
+        int count = 0;
+        for (int r = 0; r < rows; r++) {
+            int slot = hashRow(r) & (table.length - 1);
+            while (table[slot] >= 0 && !rowEquals(table[slot], r)) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            if (table[slot] < 0) {
+                table[slot] = r;
+                distinct[count++] = r;
+            }
+        }
+        return Arrays.copyOf(distinct, count);
+    }
+
+    public int size() {
+        return rows;
+    }
+
+    public int getDims() {
+        return dims;
+    }
+
+    /**
+     * @return the euclidean distance between a row and {@code query}.
+     */
+    public double distance(int row, float[] query) {
+        checkRow(row);
+        double sum = 0;
+        int offset = row * dims;
+        for (int d = 0; d < dims; d++) {
+            double delta = floats.get(offset + d) - query[d];
+            sum += delta * delta;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Scan every row for its distance to {@code query}.
+     *
+     * @param distances receives the distance of each row, and must have at least {@link #size()} elements.
+     */
+    public void distances(float[] query, double[] distances) {
+        for (int r = 0; r < rows; r++) {
+            distances[r] = distance(r, query);
+        }
+    }
+
+    /**
+     * @return the index of the row closest to {@code query}, or -1 if the matrix is empty.
+     */
+    public int nearest(float[] query) {
+        int nearest = -1;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int r = 0; r < rows; r++) {
+            double distance = distance(r, query);
+            if (distance < nearestDistance) {
+                nearest = r;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Write the rows as a float32 little-endian row-major matrix.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer content = bytes.duplicate();
+        content.position(0).limit(rows * dims * Float.BYTES);
+        while (content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+
+    /**
+     * Release the memory of the rows and delete the file they spilled to, if any. The matrix is
+     * empty afterwards.
+     */
+    @Override
+    public void close() {
+        rows = 0;
+        capacity = 0;
+        // a mapping is only unmapped once collected, but the file is deleted as soon as its channel is closed
+        bytes = ByteBuffer.allocateDirect(0);
+        floats = bytes.asFloatBuffer();
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            spill = null;
+        }
+    }
+
+    private void grow() {
+        int newCapacity = Math.max(INITIAL_ROWS, capacity * 2);
+        long newBytes = (long) newCapacity * Math.max(1, dims) * Float.BYTES;
+        if (newBytes > Integer.MAX_VALUE) {
+            newCapacity = Integer.MAX_VALUE / (Math.max(1, dims) * Float.BYTES);
+            newBytes = (long) newCapacity * Math.max(1, dims) * Float.BYTES;
+            if (newCapacity <= capacity) {
+                throw new IllegalStateException("An embedding matrix is limited to 2GB, " + rows + " rows of " + dims + " dimensions");
+            }
+        }
+
+        ByteBuffer grown;
+        try {
+            if (newBytes <= spillBytes) {
+                grown = ByteBuffer.allocateDirect((int) newBytes);
+                copyRows(grown);
+            } else if (spill == null) {
+                // the file is gone as soon as the channel is closed, or the JVM exits
+                spill = FileChannel.open(Files.createTempFile("embeddings", ".f32"),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                grown = spill.map(FileChannel.MapMode.READ_WRITE, 0, newBytes);
+                copyRows(grown);
+            } else {
+                // a larger mapping of the same file already has the rows
+                grown = spill.map(FileChannel.MapMode.READ_WRITE, 0, newBytes);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytes = grown.order(ByteOrder.LITTLE_ENDIAN);
+        bytes.clear();
+        floats = bytes.asFloatBuffer();
+        capacity = newCapacity;
+    }
+
+    private void copyRows(ByteBuffer into) {
+        ByteBuffer content = bytes.duplicate();
+        content.position(0).limit(rows * dims * Float.BYTES);
+        into.put(content);
+    }
+
+    private int hashRow(int row) {
+        int hash = 1;
+        int offset = row * dims;
+        for (int d = 0; d < dims; d++) {
+            hash = 31 * hash + Float.floatToIntBits(floats.get(offset + d));
+        }
+        // spread the high bits, since the table is indexed by the low ones
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean rowEquals(int a, int b) {
+        int offsetA = a * dims;
+        int offsetB = b * dims;
+        for (int d = 0; d < dims; d++) {
+            if (Float.floatToIntBits(floats.get(offsetA + d)) != Float.floatToIntBits(floats.get(offsetB + d))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " of a matrix of " + rows + " rows");
+        }
+    }
+}
@@ -56,19 +56,22 @@ public class EmbeddingModelClient {
             .registerModule(new ParameterNamesModule())
             .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
 
-    private final Map<String, float[]> embeddingCache = Collections.synchronizedMap(new LinkedHashMap<String, float[]>() {
+    public static final String BGE_SMALL = "bge-small";
+    public static final String BGE_MICRO = "bge-micro";
+    public static final String BGE_LARGE = "bge-large";
+
+    /**
+     * Tokens seen by the bge models, not counting the special tokens.
+     */
+    private static final int MAX_TOKENS = 510;
+
+    private final Map<ModelInput, float[]> embeddingCache = Collections.synchronizedMap(new LinkedHashMap<ModelInput, float[]>() {
         @Override
-        protected boolean removeEldestEntry(java.util.Map.Entry<String, float[]> eldest) {
+        protected boolean removeEldestEntry(java.util.Map.Entry<ModelInput, float[]> eldest) {
             return size() > 1000;
         }
     });
 
-    static {
-        if (!Files.exists(MODELS_DIR) && !MODELS_DIR.toFile().mkdirs()) {
-            throw new IllegalStateException("Unable to create models directory at " + MODELS_DIR);
-        }
-    }
-
     public static synchronized EmbeddingModelClient getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new EmbeddingModelClient();
@@ -86,6 +89,9 @@ public class EmbeddingModelClient {
     }
 
     private void start() {
+        if (!Files.exists(MODELS_DIR) && !MODELS_DIR.toFile().mkdirs()) {
+            throw new IllegalStateException("Unable to create models directory at " + MODELS_DIR);
+        }
         Path pyLauncher = MODELS_DIR.resolve("get_embedding.py");
         try {
             Files.copy(requireNonNull(EmbeddingModelClient.class.getResourceAsStream("/get_embedding.py")), pyLauncher, StandardCopyOption.REPLACE_EXISTING);
@@ -136,15 +142,15 @@ public class EmbeddingModelClient {
 
     public Relatedness getRelatedness(String t1, String t2, double threshold) {
         List<Duration> timings = new ArrayList<>(2);
-        float[] e1 = embeddingCache.computeIfAbsent(t1, timeEmbedding(timings));
-        float[] e2 = embeddingCache.computeIfAbsent(t2.replace("\n", ""), timeEmbedding(timings));
+        float[] e1 = getCachedEmbedding(BGE_SMALL, t1, timings);
+        float[] e2 = getCachedEmbedding(BGE_SMALL, t2.replace("\n", ""), timings);
         return new Relatedness(dist(e1, e2) <= threshold, timings);
     }
 
-    private Function<String, float[]> timeEmbedding(List<Duration> timings) {
+    private Function<ModelInput, float[]> timeEmbedding(List<Duration> timings) {
         return t -> {
             long start = System.nanoTime();
-            float[] em = getEmbedding(t);
+            float[] em = getEmbedding(t.model, t.text);
             if (timings.isEmpty()) {
                 timings.add(Duration.ofNanos(System.nanoTime() - start));
             }
@@ -154,13 +160,55 @@ public class EmbeddingModelClient {
 
     public double getDistance(String t1, String t2) {
         List<Duration> timings = new ArrayList<>(2);
-        float[] e1 = embeddingCache.computeIfAbsent(t1, timeEmbedding(timings));
-        float[] e2 = embeddingCache.computeIfAbsent(t2, timeEmbedding(timings));
+        float[] e1 = getCachedEmbedding(BGE_SMALL, t1, timings);
+        float[] e2 = getCachedEmbedding(BGE_SMALL, t2, timings);
         return dist(e1, e2);
 
     }
 
-    private static double dist(float[] v1, float[] v2) {
+    public double getDistance(PreparedQuery query, String text) {
+        return dist(query.getSearchEmbedding(), getCachedEmbedding(BGE_SMALL, text, new ArrayList<>(1)));
+    }
+
+    /**
+     * Get the embedding of a text from the cache, or from the model if it has not been embedded yet.
+     * Only the first model request made is recorded in {@code timings}.
+     */
+    public float[] getCachedEmbedding(String model, String text, List<Duration> timings) {
+        return embeddingCache.computeIfAbsent(new ModelInput(model, text), timeEmbedding(timings));
+    }
+
+    /**
+     * Embed all texts that are not cached yet in a single batched request.
+     * <p>
+     * The embeddings of every text are returned rather than only cached, since the cache is bounded
+     * and a batch larger than it would evict its first embeddings before they are read.
+     */
+    public Batch prefetch(String model, Collection<String> texts) {
+        Map<String, float[]> embeddings = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String text : new LinkedHashSet<>(texts)) {
+            float[] cached = embeddingCache.get(new ModelInput(model, text));
+            if (cached == null) {
+                missing.add(text);
+            } else {
+                embeddings.put(text, cached);
+            }
+        }
+        if (missing.isEmpty()) {
+            return new Batch(embeddings, Collections.emptyList());
+        }
+        long start = System.nanoTime();
+        List<float[]> batch = getEmbeddings(model, missing);
+        Duration timing = Duration.ofNanos(System.nanoTime() - start);
+        for (int i = 0; i < missing.size(); i++) {
+            embeddings.put(missing.get(i), batch.get(i));
+            embeddingCache.put(new ModelInput(model, missing.get(i)), batch.get(i));
+        }
+        return new Batch(embeddings, Collections.singletonList(timing));
+    }
+
+    public static double dist(float[] v1, float[] v2) {
         if (v1.length != v2.length) {
             throw new IllegalArgumentException("Vectors must have the same dimension");
         }
@@ -173,14 +221,44 @@ public class EmbeddingModelClient {
     }
 
     public float[] getEmbedding(String text) {
+        return getEmbedding(BGE_SMALL, text);
+    }
+
+    public float[] getEmbedding(String model, String text) {
+        return getEmbeddings(model, Collections.singletonList(text)).get(0);
+    }
+
+    /**
+     * Embed a batch of texts in one request to the embedding server.
+     *
+     * @return the embeddings in the same order as {@code texts}.
+     * @throws IllegalStateException if the server does not return one embedding per text.
+     */
+    public List<float[]> getEmbeddings(String model, List<String> texts) {
+        List<Embedding> embedded = embed(model, texts);
+        List<float[]> embeddings = new ArrayList<>(embedded.size());
+        for (Embedding embedding : embedded) {
+            embeddings.add(embedding.getVector());
+        }
+        return embeddings;
+    }
 
+    /**
+     * Embed a batch of texts in one request to the embedding server, after cutting the texts that
+     * are longer than the token limit of the models down to it.
+     *
+     * @return the embeddings in the same order as {@code texts}.
+     * @throws IllegalStateException if the server does not return one embedding per text.
+     */
+    public List<Embedding> embed(String model, List<String> texts) {
+        List<String> truncated = truncate(texts);
         HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(30));
         HttpSender.Response raw = null;
 
         try {
             raw = http
                     .post("http://127.0.0.1:7860/embeddings")
-                    .withContent("application/json", mapper.writeValueAsBytes(new EmbeddingModelClient.Request(text)))
+                    .withContent("application/json", mapper.writeValueAsBytes(new EmbeddingModelClient.Request(model, truncated)))
                     .send();
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
@@ -190,26 +268,109 @@ public class EmbeddingModelClient {
             throw new IllegalStateException("Unable to get embedding. HTTP " + raw.getClass());
         }
 
-        float[] embeddings = null;
+        List<float[]> embeddings = null;
         try {
-            embeddings = mapper.readValue(raw.getBodyAsBytes(), EmbeddingModelClient.Response.class).getEmbedding();
+            embeddings = mapper.readValue(raw.getBodyAsBytes(), EmbeddingModelClient.Response.class).getEmbeddings();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (embeddings.size() != texts.size()) {
+            throw new IllegalStateException("Expected " + texts.size() + " embeddings from " + model +
+                                            ", got " + embeddings.size());
+        }
+        List<Embedding> embedded = new ArrayList<>(embeddings.size());
+        for (int i = 0; i < embeddings.size(); i++) {
+            embedded.add(new Embedding(embeddings.get(i), truncated.get(i).length() < texts.get(i).length()));
+        }
+        return embedded;
+    }
+
+    /**
+     * Cut texts down to the number of tokens the embedding models can see, so that the server does
+     * not spend time tokenizing what the models discard, and the caller knows which texts were cut.
+     * Every word piece covers at least one character other than whitespace, so only the texts with
+     * more of them than the token limit can exceed it, and those are tokenized in a single request.
+     */
+    private List<String> truncate(List<String> texts) {
+        List<Integer> longIndices = new ArrayList<>();
+        List<String> longTexts = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            if (mayExceedTokenLimit(texts.get(i))) {
+                longIndices.add(i);
+                longTexts.add(texts.get(i));
+            }
+        }
+        if (longTexts.isEmpty()) {
+            return texts;
+        }
+
+        HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(30));
+        try (HttpSender.Response raw = http
+                .post("http://127.0.0.1:7860/truncate")
+                .withContent("application/json", mapper.writeValueAsBytes(new TruncateRequest(longTexts)))
+                .send()) {
+            if (!raw.isSuccessful()) {
+                throw new IllegalStateException("Unable to truncate input. HTTP " + raw.getCode());
+            }
+            List<String> truncated = mapper.readValue(raw.getBodyAsBytes(), TruncateResponse.class).getData();
+            if (truncated.size() != longTexts.size()) {
+                throw new IllegalStateException("Expected " + longTexts.size() + " truncated texts, got " + truncated.size());
+            }
+            List<String> result = new ArrayList<>(texts);
+            for (int i = 0; i < longIndices.size(); i++) {
+                if (truncated.get(i).length() < longTexts.get(i).length()) {
+                    result.set(longIndices.get(i), truncated.get(i));
+                }
+            }
+            return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return embeddings;
+    }
+
+    static boolean mayExceedTokenLimit(String text) {
+        int visible = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i)) && ++visible > MAX_TOKENS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Value
+    private static class TruncateRequest {
+        List<String> input;
+    }
+
+    @Value
+    private static class TruncateResponse {
+        List<String> data;
+    }
+
+    @Value
+    public static class Embedding {
+        float[] vector;
+
+        /**
+         * Whether the text was cut to the token limit of the model before being embedded.
+         */
+        boolean truncated;
+    }
+
+    @Value
+    private static class ModelInput {
+        String model;
+        String text;
     }
 
     @Value
     private static class Request {
         @JsonProperty("model")
-        String model = "bge-small";
+        String model;
 
         @JsonProperty("input")
-        String input;
-
-        Request(String input) {
-            this.input = input;
-        }
+        List<String> input;
     }
 
     @Value
@@ -217,20 +378,42 @@ public class EmbeddingModelClient {
         @JsonProperty("data")
         List<EmbeddingData> data;
 
-        public float[] getEmbedding() {
+        public List<float[]> getEmbeddings() {
             if (data == null || data.isEmpty()) {
-                return new float[0];
+                return Collections.emptyList();
             }
-            return data.get(0).embedding;
+            List<EmbeddingData> sorted = new ArrayList<>(data);
+            sorted.sort(Comparator.comparingInt(EmbeddingData::getIndex));
+            List<float[]> embeddings = new ArrayList<>(sorted.size());
+            for (EmbeddingData embeddingData : sorted) {
+                embeddings.add(embeddingData.embedding);
+            }
+            return embeddings;
         }
 
         @Value
         private static class EmbeddingData {
             @JsonProperty("embedding")
             float[] embedding;
+
+            @JsonProperty("index")
+            int index;
         }
     }
 
+    @Value
+    public static class Batch {
+        /**
+         * The embedding of each distinct text of the batch.
+         */
+        Map<String, float[]> embeddings;
+
+        /**
+         * The timing of the batched request, or an empty list if every text was already cached.
+         */
+        List<Duration> timings;
+    }
+
     @Value
     public static class Relatedness {
         boolean isRelated;
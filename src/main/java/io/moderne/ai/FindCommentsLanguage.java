@@ -17,23 +17,50 @@ package io.moderne.ai;
 
 
 import io.moderne.ai.table.LanguageDistribution;
+import io.moderne.ai.table.LanguageSummary;
 import lombok.EqualsAndHashCode;
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
+import org.openrewrite.Cursor;
 import org.openrewrite.ExecutionContext;
-import org.openrewrite.Recipe;
+import org.openrewrite.Option;
+import org.openrewrite.ScanningRecipe;
+import org.openrewrite.SourceFile;
 import org.openrewrite.TreeVisitor;
 import org.openrewrite.internal.ListUtils;
 import org.openrewrite.java.JavaIsoVisitor;
+import org.openrewrite.java.tree.Comment;
+import org.openrewrite.java.tree.J;
 import org.openrewrite.java.tree.JavaSourceFile;
 import org.openrewrite.java.tree.Space;
 import org.openrewrite.java.tree.TextComment;
 import org.openrewrite.marker.SearchResult;
 
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
 import static org.openrewrite.Tree.randomId;
 
 @Value
 @EqualsAndHashCode(callSuper = false)
-public class FindCommentsLanguage extends Recipe {
+public class FindCommentsLanguage extends ScanningRecipe<FindCommentsLanguage.Accumulator> {
+
+    @Option(displayName = "Fast path confidence",
+            description = "Comments are first classified by an in-process character n-gram model, and the language " +
+                          "model is only called when its confidence is below this cutoff. Set it above 1 to always call " +
+                          "the language model. Defaults to 0.99.",
+            example = "0.99",
+            required = false)
+    @Nullable
+    Double fastPathConfidence;
+
+    @Option(displayName = "Aggregate only",
+            description = "Only count the comments of each language per source file in a summary table, instead of " +
+                          "listing every comment and marking it in the source file. Defaults to false.",
+            required = false)
+    @Nullable
+    Boolean aggregateOnly;
 
     @Override
     public String getDisplayName() {
@@ -46,20 +73,82 @@ public class FindCommentsLanguage extends Recipe {
     }
 
     transient LanguageDistribution distribution = new LanguageDistribution(this);
+    transient LanguageSummary summary = new LanguageSummary(this);
+
+    public static class Accumulator {
+        /**
+         * The count of comments per source file and language, when only aggregating.
+         */
+        final Map<String, Map<String, LongAdder>> commentCounts = new ConcurrentHashMap<>();
+    }
 
     @Override
-    public TreeVisitor<?, ExecutionContext> getVisitor() {
+    public Accumulator getInitialValue(ExecutionContext ctx) {
+        return new Accumulator();
+    }
 
+    @Override
+    public TreeVisitor<?, ExecutionContext> getScanner(Accumulator acc) {
+        if (!Boolean.TRUE.equals(aggregateOnly)) {
+            return TreeVisitor.noop();
+        }
         return new JavaIsoVisitor<ExecutionContext>() {
+            @Override
+            public J.CompilationUnit visitCompilationUnit(J.CompilationUnit cu, ExecutionContext ctx) {
+                Map<String, LongAdder> counts = acc.commentCounts.computeIfAbsent(
+                        cu.getSourcePath().toString(), p -> new ConcurrentHashMap<>());
+                for (String language : LanguageDetectorModelClient.detectLanguages(collectComments(cu, getCursor()), fastPathConfidence)) {
+                    counts.computeIfAbsent(language, l -> new LongAdder()).increment();
+                }
+                return cu;
+            }
+        };
+    }
+
+    @Override
+    public Collection<? extends SourceFile> generate(Accumulator acc, ExecutionContext ctx) {
+        for (Map.Entry<String, Map<String, LongAdder>> file : acc.commentCounts.entrySet()) {
+            for (Map.Entry<String, LongAdder> language : file.getValue().entrySet()) {
+                summary.insertRow(ctx, new LanguageSummary.Row(file.getKey(), language.getKey(), language.getValue().sum()));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public TreeVisitor<?, ExecutionContext> getVisitor(Accumulator acc) {
+        if (Boolean.TRUE.equals(aggregateOnly)) {
+            return TreeVisitor.noop();
+        }
+        return new JavaIsoVisitor<ExecutionContext>() {
+            @Override
+            public J.CompilationUnit visitCompilationUnit(J.CompilationUnit cu, ExecutionContext ctx) {
+                // Identify the language of every comment of the file at once, so that the model is called once per file
+                List<String> comments = collectComments(cu, getCursor());
+                Map<String, String> languages = new HashMap<>();
+                List<String> detected = LanguageDetectorModelClient.detectLanguages(comments, fastPathConfidence);
+                for (int i = 0; i < comments.size(); i++) {
+                    languages.put(comments.get(i), detected.get(i));
+                }
+                getCursor().putMessage("languages", languages);
+                return super.visitCompilationUnit(cu, ctx);
+            }
+
             @Override
             public Space visitSpace(Space space, Space.Location loc, ExecutionContext ctx) {
                 return space.withComments(ListUtils.map(space.getComments(), comment -> {
                     if (comment instanceof TextComment) {
+                        String text = ((TextComment) comment).getText();
+                        Map<String, String> languages = getCursor().getNearestMessage("languages", Collections.emptyMap());
+                        String language = languages.get(text);
+                        if (language == null) {
+                            language = LanguageDetectorModelClient.detectLanguage(text, fastPathConfidence).getLanguage();
+                        }
                         JavaSourceFile javaSourceFile = getCursor().firstEnclosing(JavaSourceFile.class);
                         distribution.insertRow(ctx, new LanguageDistribution.Row(
                                         javaSourceFile.getSourcePath().toString(),
-                                        ((TextComment) comment).getText(),
-                                        LanguageDetectorModelClient.getInstance().getLanguage(((TextComment) comment).getText()).getLanguage()
+                                        text,
+                                        language
                                 )
                         );
 
@@ -74,4 +163,20 @@ public class FindCommentsLanguage extends Recipe {
 
         };
     }
+
+    private static List<String> collectComments(J.CompilationUnit cu, Cursor cursor) {
+        List<String> comments = new ArrayList<>();
+        new JavaIsoVisitor<List<String>>() {
+            @Override
+            public Space visitSpace(Space space, Space.Location loc, List<String> c) {
+                for (Comment comment : space.getComments()) {
+                    if (comment instanceof TextComment) {
+                        c.add(((TextComment) comment).getText());
+                    }
+                }
+                return super.visitSpace(space, loc, c);
+            }
+        }.visit(cu, comments, cursor.getParentOrThrow());
+        return comments;
+    }
 }
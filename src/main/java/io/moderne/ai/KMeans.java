@@ -0,0 +1,237 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * K-means clustering of rows of a contiguous row-major matrix, seeded with k-means++. The rows
+ * are read in place, so that the off-heap rows of an {@link EmbeddingMatrix} need not be copied.
+ * Small inputs are clustered with Lloyd iterations over every point, larger ones with mini-batch
+ * k-means (Sculley, 2010), whose cost per iteration does not depend on the number of points.
+ * Distance computations are spread over the common fork-join pool, and every random choice comes
+ * from a seeded {@link Random} so that the same input always gives the same clusters.
+ */
+class KMeans {
+    /**
+     * Inputs with more points than this are clustered by mini-batches.
+     */
+    static final int FULL_BATCH_LIMIT = 10_000;
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int MAX_ITERATIONS = 100;
+    private static final double TOLERANCE = 1e-4;
+
+    private final FloatBuffer matrix;
+
+    /**
+     * The rows of {@link #matrix} to cluster, which the rows of the clustering refer to by index.
+     */
+    private final int[] points;
+
+    private final int rows;
+    private final int dims;
+    private final Random random;
+
+    KMeans(float[] matrix, int dims, long seed) {
+        this(FloatBuffer.wrap(matrix), allRows(matrix.length / dims), dims, seed);
+    }
+
+    /**
+     * @param points the rows of {@code matrix} to cluster. Only absolute reads are made from
+     *               {@code matrix}, so it may be shared between threads.
+     */
+    KMeans(FloatBuffer matrix, int[] points, int dims, long seed) {
+        this.matrix = matrix;
+        this.points = points;
+        this.dims = dims;
+        this.rows = points.length;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return the centroids of {@code k} clusters, as a contiguous row-major matrix.
+     */
+    float[] fit(int k) {
+        float[] centroids = seed(k);
+        if (rows <= FULL_BATCH_LIMIT) {
+            lloyd(centroids, k);
+        } else {
+            miniBatch(centroids, k);
+        }
+        return centroids;
+    }
+
+    /**
+     * @return for each centroid, the index in the clustered rows of the closest row.
+     */
+    int[] closestRows(float[] centroids) {
+        return IntStream.range(0, centroids.length / dims).parallel().map(c -> {
+            int closest = 0;
+            double closestDistance = Double.MAX_VALUE;
+            for (int r = 0; r < rows; r++) {
+                double distance = squaredDistance(r, centroids, c);
+                if (distance < closestDistance) {
+                    closest = r;
+                    closestDistance = distance;
+                }
+            }
+            return closest;
+        }).toArray();
+    }
+
+    /**
+     * k-means++: each centroid after the first is a row drawn with a probability proportional to
+     * its squared distance to the closest centroid already chosen.
+     */
+    private float[] seed(int k) {
+        float[] centroids = new float[k * dims];
+        copyRow(random.nextInt(rows), centroids, 0);
+        double[] distances = new double[rows];
+        Arrays.fill(distances, Double.MAX_VALUE);
+        for (int c = 1; c < k; c++) {
+            int previous = c - 1;
+            IntStream.range(0, rows).parallel().forEach(r ->
+                    distances[r] = Math.min(distances[r], squaredDistance(r, centroids, previous)));
+            double total = 0;
+            for (double distance : distances) {
+                total += distance;
+            }
+            int chosen = rows - 1;
+            double target = random.nextDouble() * total;
+            for (int r = 0; r < rows; r++) {
+                target -= distances[r];
+                if (target < 0) {
+                    chosen = r;
+                    break;
+                }
+            }
+            copyRow(chosen, centroids, c);
+        }
+        return centroids;
+    }
+
+    private void lloyd(float[] centroids, int k) {
+        int[] assignments = new int[rows];
+        Arrays.fill(assignments, -1);
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean changed = IntStream.range(0, rows).parallel().map(r -> {
+                int nearest = nearest(r, centroids, k);
+                int was = assignments[r];
+                assignments[r] = nearest;
+                return was == nearest ? 0 : 1;
+            }).sum() > 0;
+            if (!changed) {
+                return;
+            }
+
+            double[] sums = new double[k * dims];
+            int[] counts = new int[k];
+            for (int r = 0; r < rows; r++) {
+                int c = assignments[r];
+                counts[c]++;
+                int offset = points[r] * dims;
+                for (int d = 0; d < dims; d++) {
+                    sums[c * dims + d] += matrix.get(offset + d);
+                }
+            }
+            for (int c = 0; c < k; c++) {
+                // an empty cluster keeps its centroid
+                if (counts[c] > 0) {
+                    for (int d = 0; d < dims; d++) {
+                        centroids[c * dims + d] = (float) (sums[c * dims + d] / counts[c]);
+                    }
+                }
+            }
+        }
+    }
+
+    private void miniBatch(float[] centroids, int k) {
+        int[] counts = new int[k];
+        int[] batch = new int[BATCH_SIZE];
+        int[] assignments = new int[BATCH_SIZE];
+        float[] previous = new float[centroids.length];
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            for (int b = 0; b < BATCH_SIZE; b++) {
+                batch[b] = random.nextInt(rows);
+            }
+            IntStream.range(0, BATCH_SIZE).parallel().forEach(b ->
+                    assignments[b] = nearest(batch[b], centroids, k));
+
+            System.arraycopy(centroids, 0, previous, 0, centroids.length);
+            for (int b = 0; b < BATCH_SIZE; b++) {
+                int c = assignments[b];
+                // per-centroid learning rate, which decreases as it absorbs more points
+                float rate = 1f / ++counts[c];
+                int offset = points[batch[b]] * dims;
+                for (int d = 0; d < dims; d++) {
+                    centroids[c * dims + d] += rate * (matrix.get(offset + d) - centroids[c * dims + d]);
+                }
+            }
+
+            double shift = 0;
+            for (int i = 0; i < centroids.length; i++) {
+                double delta = centroids[i] - previous[i];
+                shift += delta * delta;
+            }
+            if (shift / k < TOLERANCE * TOLERANCE) {
+                return;
+            }
+        }
+    }
+
+    private int nearest(int row, float[] centroids, int k) {
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            double distance = squaredDistance(row, centroids, c);
+            if (distance < nearestDistance) {
+                nearest = c;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    private double squaredDistance(int row, float[] centroids, int c) {
+        double sum = 0;
+        int offset = points[row] * dims;
+        int centroidOffset = c * dims;
+        for (int d = 0; d < dims; d++) {
+            double delta = matrix.get(offset + d) - centroids[centroidOffset + d];
+            sum += delta * delta;
+        }
+        return sum;
+    }
+
+    private void copyRow(int row, float[] centroids, int c) {
+        int offset = points[row] * dims;
+        for (int d = 0; d < dims; d++) {
+            centroids[c * dims + d] = matrix.get(offset + d);
+        }
+    }
+
+    private static int[] allRows(int rows) {
+        int[] all = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            all[r] = r;
+        }
+        return all;
+    }
+}
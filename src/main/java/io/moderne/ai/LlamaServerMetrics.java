@@ -0,0 +1,188 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import lombok.Value;
+import org.openrewrite.ipc.http.HttpSender;
+import org.openrewrite.ipc.http.HttpUrlConnectionSender;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Periodically scrapes the Prometheus metrics of every llama-server replica, so that generative
+ * latency can be attributed to queueing, prompt evaluation or decoding. Each recipe run takes a
+ * {@link Recording} of the samples scraped while it is open, so that runs do not see each other's
+ * samples, and servers are only scraped while a run is recording. Recordings are held weakly, so
+ * that a run that fails before closing its recording does not keep it, nor the scraping, alive.
+ * <p>
+ * The scrape interval in seconds is set with the {@code moderne.ai.llama.metricsInterval} system property.
+ */
+public class LlamaServerMetrics {
+    private static final int MAX_SAMPLES = 10_000;
+    private static final Set<Recording> RECORDINGS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private final LlamaServerPool servers;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "llama-server-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    LlamaServerMetrics(LlamaServerPool servers) {
+        this.servers = servers;
+    }
+
+    void start() {
+        long interval = Math.max(1, Long.getLong("moderne.ai.llama.metricsInterval", 5));
+        scheduler.scheduleAtFixedRate(this::scrape, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void scrape() {
+        if (RECORDINGS.isEmpty()) {
+            return;
+        }
+        for (LlamaServerPool.Replica replica : servers.getReplicas()) {
+            HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(5), Duration.ofSeconds(5));
+            try (HttpSender.Response raw = http.get(replica.url("/metrics")).send()) {
+                if (raw.isSuccessful()) {
+                    Map<String, Double> metrics = parse(new String(raw.getBodyAsBytes(), UTF_8));
+                    publish(new Sample(Instant.now().toString(), replica.port,
+                            metrics.getOrDefault("llamacpp:prompt_tokens_seconds", 0.0),
+                            metrics.getOrDefault("llamacpp:predicted_tokens_seconds", 0.0),
+                            metrics.getOrDefault("llamacpp:kv_cache_usage_ratio", 0.0),
+                            metrics.getOrDefault("llamacpp:requests_processing", 0.0).intValue(),
+                            metrics.getOrDefault("llamacpp:requests_deferred", 0.0).intValue()));
+                }
+            } catch (RuntimeException ignored) {
+                // a replica being restarted has no metrics, the next scrape will catch up
+            }
+        }
+    }
+
+    static void publish(Sample sample) {
+        List<Recording> recordings;
+        synchronized (RECORDINGS) {
+            recordings = new ArrayList<>(RECORDINGS);
+        }
+        for (Recording recording : recordings) {
+            recording.add(sample);
+        }
+    }
+
+    static int recordings() {
+        return RECORDINGS.size();
+    }
+
+    /**
+     * Start recording the samples scraped from now on, until the recording is closed or is no
+     * longer referenced by the caller.
+     */
+    public static Recording record() {
+        Recording recording = new Recording();
+        RECORDINGS.add(recording);
+        return recording;
+    }
+
+    /**
+     * Parse the Prometheus text exposition format into the value of each metric. Labels and
+     * timestamps are ignored, since llama-server exposes a single series per metric.
+     */
+    static Map<String, Double> parse(String text) {
+        Map<String, Double> metrics = new HashMap<>();
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int nameEnd = 0;
+            while (nameEnd < line.length() && line.charAt(nameEnd) != '{' && !Character.isWhitespace(line.charAt(nameEnd))) {
+                nameEnd++;
+            }
+            String name = line.substring(0, nameEnd);
+            int valueStart = nameEnd;
+            if (nameEnd < line.length() && line.charAt(nameEnd) == '{') {
+                valueStart = line.indexOf('}', nameEnd) + 1;
+                if (valueStart == 0) {
+                    continue;
+                }
+            }
+            String[] rest = line.substring(valueStart).trim().split("\\s+");
+            try {
+                metrics.put(name, Double.parseDouble(rest[0]));
+            } catch (NumberFormatException ignored) {
+                // not a sample line
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * The samples scraped while a run is open, in a bounded queue that drops the oldest ones.
+     */
+    public static class Recording implements Closeable {
+        private final BlockingQueue<Sample> samples = new ArrayBlockingQueue<>(MAX_SAMPLES);
+
+        private void add(Sample sample) {
+            while (!samples.offer(sample)) {
+                samples.poll();
+            }
+        }
+
+        /**
+         * @return the samples recorded since the previous call.
+         */
+        public List<Sample> drain() {
+            List<Sample> drained = new ArrayList<>();
+            samples.drainTo(drained);
+            return drained;
+        }
+
+        /**
+         * Stop recording. Samples recorded until then can still be drained.
+         */
+        @Override
+        public void close() {
+            RECORDINGS.remove(this);
+        }
+    }
+
+    @Value
+    public static class Sample {
+        String timestamp;
+        int port;
+        double promptTokensPerSecond;
+        double predictedTokensPerSecond;
+        double kvCacheUsageRatio;
+        int requestsProcessing;
+        int requestsDeferred;
+    }
+}
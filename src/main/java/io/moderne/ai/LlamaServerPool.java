@@ -0,0 +1,199 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import kong.unirest.HttpResponse;
+import kong.unirest.Unirest;
+import kong.unirest.UnirestException;
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Replicas of llama-server on consecutive ports, each pinned to its own range of cores.
+ * A single server does not scale to many cores, so on large machines several smaller
+ * servers give a higher throughput. Requests go to the replica with the fewest requests
+ * in flight, and a replica whose process died is restarted before it is used again.
+ * <p>
+ * The number of replicas is set with the {@code moderne.ai.llama.replicas} system property.
+ */
+class LlamaServerPool {
+    private static final ExecutorService EXECUTOR_SERVICE = Executors.newCachedThreadPool();
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final String command;
+
+    /**
+     * @param command the llama-server command line, without the port and thread arguments.
+     */
+    LlamaServerPool(String command, int basePort, int replicaCount) {
+        this.command = command;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int coresPerReplica = Math.max(1, cores / replicaCount);
+        for (int i = 0; i < replicaCount; i++) {
+            int firstCore = (i * coresPerReplica) % cores;
+            replicas.add(new Replica(basePort + i, firstCore, Math.min(cores, firstCore + coresPerReplica) - 1,
+                    replicaCount > 1));
+        }
+    }
+
+    static int configuredReplicas() {
+        return Math.max(1, Integer.getInteger("moderne.ai.llama.replicas", 1));
+    }
+
+    /**
+     * Start every replica that is not already running, then wait for all of them to be up.
+     */
+    void start() {
+        for (Replica replica : replicas) {
+            if (checkForUpRequest(replica.port) != 200) {
+                replica.launch();
+            }
+        }
+        for (Replica replica : replicas) {
+            replica.awaitUp();
+        }
+    }
+
+    /**
+     * Reserve the least loaded replica. Every call must be paired with {@link #release(Replica)}.
+     */
+    Replica acquire() {
+        Replica best;
+        int load;
+        do {
+            Replica least = null;
+            int leastLoad = 0;
+            for (Replica replica : replicas) {
+                int inFlight = replica.inFlight.get();
+                if (least == null || inFlight < leastLoad) {
+                    least = replica;
+                    leastLoad = inFlight;
+                }
+            }
+            best = requireNonNull(least);
+            load = leastLoad;
+            // retry when another caller took this replica since its load was read
+        } while (!best.inFlight.compareAndSet(load, load + 1));
+        try {
+            best.ensureAlive();
+        } catch (RuntimeException e) {
+            best.inFlight.decrementAndGet();
+            throw e;
+        }
+        return best;
+    }
+
+    void release(Replica replica) {
+        replica.inFlight.decrementAndGet();
+    }
+
+    List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    private static int checkForUpRequest(int port) {
+        try {
+            HttpResponse<String> response = Unirest.head("http://127.0.0.1:" + port).asString();
+            return response.getStatus();
+        } catch (UnirestException e) {
+            return 523;
+        }
+    }
+
+    class Replica {
+        final int port;
+        private final int firstCore;
+        private final int lastCore;
+        private final boolean pinned;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * Null when the server was already running before this pool was created.
+         */
+        @Nullable
+        private Process process;
+
+        private final StringWriter output = new StringWriter();
+
+        Replica(int port, int firstCore, int lastCore, boolean pinned) {
+            this.port = port;
+            this.firstCore = firstCore;
+            this.lastCore = lastCore;
+            this.pinned = pinned;
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + port + path;
+        }
+
+        private void launch() {
+            String cmd = command + " --port " + port;
+            if (pinned) {
+                cmd = "taskset -c " + firstCore + "-" + lastCore + " " + cmd + " -t " + (lastCore - firstCore + 1);
+            }
+            output.getBuffer().setLength(0);
+            PrintWriter procOut = new PrintWriter(output);
+            try {
+                Process proc = Runtime.getRuntime().exec(new String[]{"/bin/sh", "-c", cmd});
+                EXECUTOR_SERVICE.submit(() -> {
+                    new BufferedReader(new InputStreamReader(proc.getInputStream())).lines()
+                            .forEach(procOut::println);
+                    new BufferedReader(new InputStreamReader(proc.getErrorStream())).lines()
+                            .forEach(procOut::println);
+                });
+                process = proc;
+            } catch (IOException e) {
+                throw new RuntimeException(e + "\nOutput: " + output);
+            }
+        }
+
+        private void awaitUp() {
+            for (int i = 0; i < 60; i++) {
+                try {
+                    if (process != null && !process.isAlive()) {
+                        break;
+                    }
+                    if (checkForUpRequest(port) == 200) {
+                        return;
+                    }
+                    Thread.sleep(1_000);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            throw new RuntimeException("Failed to start server on port " + port + "\n" + output);
+        }
+
+        private synchronized void ensureAlive() {
+            if (process != null && !process.isAlive()) {
+                launch();
+                awaitUp();
+            }
+        }
+    }
+}
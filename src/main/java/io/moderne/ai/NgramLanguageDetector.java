@@ -0,0 +1,218 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import lombok.Value;
+import org.jspecify.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Identifies the language of a text in the JVM with a naive Bayes classifier over character
+ * trigrams, trained on the samples bundled in {@code /language_samples}. It only knows a handful
+ * of languages and is meant to answer the common case quickly, leaving short or ambiguous texts
+ * to the {@link LanguageDetectorModelClient} model.
+ * <p>
+ * Besides the languages it identifies, it is trained on other languages written in the Latin script,
+ * which it rejects. Text in a language it does not identify is then attracted by one of them, rather
+ * than forced into the closest language it identifies with a confidence that only compares those.
+ */
+public class NgramLanguageDetector {
+    private static final List<String> LANGUAGES = Arrays.asList("en", "fr", "de", "es", "it", "pt", "nl");
+
+    /**
+     * Languages that are only known in order to be rejected, so that the model is consulted for them.
+     */
+    private static final List<String> REJECTED_LANGUAGES = Arrays.asList("pl", "cs", "sk", "sl", "hr", "ro", "ca",
+            "gl", "tr", "sw", "vi", "id", "tl", "sv", "da", "no", "fi", "hu", "et", "lv", "lt", "af", "sq", "eu");
+
+    /**
+     * Trigrams of a text are far from independent, so the evidence of a long text is counted as if
+     * it had at most this many trigrams, to keep the confidence meaningful.
+     */
+    private static final int MAX_EVIDENCE = 40;
+
+    /**
+     * Texts with fewer trigrams, or with fewer trigrams known to the winning language, are not
+     * classified with any confidence.
+     */
+    private static final int MIN_TRIGRAMS = 8;
+    private static final double MIN_COVERAGE = 0.75;
+
+    /**
+     * Weight of the sample of a language against the samples of all languages, which stand in for
+     * the trigrams it has not seen, so that languages with smaller samples are not favored by
+     * text they have seen little of.
+     */
+    private static final double SAMPLE_WEIGHT = 0.5;
+
+    @Nullable
+    private static NgramLanguageDetector INSTANCE;
+
+    /**
+     * One per language identified, followed by one per language rejected.
+     */
+    private final List<Map<String, Double>> logProbabilities = new ArrayList<>();
+
+    /**
+     * Probabilities of the trigrams in the samples of all languages, for trigrams a language has not seen.
+     */
+    private final Map<String, Double> unseenLogProbabilities = new HashMap<>();
+    private final double unseenLogProbability;
+
+    private NgramLanguageDetector() {
+        List<String> classes = new ArrayList<>(LANGUAGES);
+        classes.addAll(REJECTED_LANGUAGES);
+        List<Map<String, Integer>> counts = new ArrayList<>(classes.size());
+        Map<String, Integer> allCounts = new HashMap<>();
+        int allTotal = 0;
+        for (String language : classes) {
+            Map<String, Integer> languageCounts = new HashMap<>();
+            for (String trigram : trigrams(readSample(language))) {
+                languageCounts.merge(trigram, 1, Integer::sum);
+                allCounts.merge(trigram, 1, Integer::sum);
+                allTotal++;
+            }
+            counts.add(languageCounts);
+        }
+
+        // add-one smoothing, with one extra slot for every trigram no language has seen
+        double allDenominator = allTotal + allCounts.size() + 1;
+        Map<String, Double> allProbabilities = new HashMap<>(allCounts.size() * 2);
+        for (Map.Entry<String, Integer> count : allCounts.entrySet()) {
+            double probability = (count.getValue() + 1) / allDenominator;
+            allProbabilities.put(count.getKey(), probability);
+            unseenLogProbabilities.put(count.getKey(), Math.log((1 - SAMPLE_WEIGHT) * probability));
+        }
+        unseenLogProbability = Math.log((1 - SAMPLE_WEIGHT) / allDenominator);
+
+        for (Map<String, Integer> languageCounts : counts) {
+            int total = 0;
+            for (int count : languageCounts.values()) {
+                total += count;
+            }
+            Map<String, Double> logProbability = new HashMap<>(languageCounts.size() * 2);
+            for (Map.Entry<String, Integer> count : languageCounts.entrySet()) {
+                logProbability.put(count.getKey(), Math.log(SAMPLE_WEIGHT * count.getValue() / total +
+                                                            (1 - SAMPLE_WEIGHT) * allProbabilities.get(count.getKey())));
+            }
+            logProbabilities.add(logProbability);
+        }
+    }
+
+    public static synchronized NgramLanguageDetector getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new NgramLanguageDetector();
+        }
+        return INSTANCE;
+    }
+
+    public Detection detect(String text) {
+        List<String> trigrams = trigrams(text);
+        if (trigrams.size() < MIN_TRIGRAMS) {
+            return new Detection("unknown", 0);
+        }
+
+        double[] scores = new double[logProbabilities.size()];
+        int best = 0;
+        for (int l = 0; l < logProbabilities.size(); l++) {
+            Map<String, Double> logProbability = logProbabilities.get(l);
+            for (String trigram : trigrams) {
+                Double p = logProbability.get(trigram);
+                scores[l] += p != null ? p : unseenLogProbabilities.getOrDefault(trigram, unseenLogProbability);
+            }
+            if (scores[l] > scores[best]) {
+                best = l;
+            }
+        }
+
+        if (best >= LANGUAGES.size()) {
+            return new Detection("unknown", 0);
+        }
+
+        int known = 0;
+        for (String trigram : trigrams) {
+            if (logProbabilities.get(best).containsKey(trigram)) {
+                known++;
+            }
+        }
+        if (known < MIN_COVERAGE * trigrams.size()) {
+            return new Detection("unknown", 0);
+        }
+
+        // posterior of the best language against every language, including those rejected, with a uniform prior
+        double weight = Math.min(1.0, (double) MAX_EVIDENCE / trigrams.size());
+        double sum = 0;
+        for (double score : scores) {
+            sum += Math.exp(weight * (score - scores[best]));
+        }
+        return new Detection(LANGUAGES.get(best), 1 / sum);
+    }
+
+    /**
+     * Trigrams of the lowercase letters of each word, padded with a space on both sides so that
+     * word beginnings and endings are told apart.
+     */
+    static List<String> trigrams(String text) {
+        List<String> trigrams = new ArrayList<>();
+        StringBuilder word = new StringBuilder(" ");
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetter(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 1) {
+                word.append(' ');
+                for (int j = 0; j + 3 <= word.length(); j++) {
+                    trigrams.add(word.substring(j, j + 3));
+                }
+                word.setLength(1);
+            }
+        }
+        return trigrams;
+    }
+
+    private static String readSample(String language) {
+        try (InputStream is = requireNonNull(NgramLanguageDetector.class.getResourceAsStream("/language_samples/" + language + ".txt"));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF_8))) {
+            StringBuilder sample = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sample.append(line).append('\n');
+            }
+            return sample.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Value
+    public static class Detection {
+        String language;
+
+        /**
+         * Between 0 and 1, where 0 means the text could not be classified.
+         */
+        double confidence;
+    }
+}
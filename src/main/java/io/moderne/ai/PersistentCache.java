@@ -0,0 +1,394 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A disk-backed map from the SHA-256 hash of a key to a value, so that model answers for text that
+ * repeats across files and repositories, like license headers, are computed once and survive JVM
+ * restarts. Appends take a file lock, so several processes can share the same directory and see
+ * each other's entries.
+ * <p>
+ * Each namespace is made of two generations of append-only files under {@code ~/.moderne/models/cache}.
+ * Once the current generation reaches half the size of the cache, a new one is started and the
+ * generation before it is deleted, so the cache keeps what the last runs used and never grows past
+ * its size. An entry found in the previous generation is copied to the current one.
+ * <p>
+ * Only an index of the offsets of the records is kept in memory, keyed by the first 8 bytes of the
+ * hash, and values are read from the file when found. A record is the 32 bytes of the hash, the
+ * length of the value as an int and the value itself. A record left incomplete by a crashed process
+ * is dropped by the next append.
+ */
+public class PersistentCache {
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("user.home") + "/.moderne/models/cache");
+    private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int HASH_LENGTH = 32;
+    private static final int HEADER_LENGTH = HASH_LENGTH + Integer.BYTES;
+    private static final int MAX_VALUE_LENGTH = 64 * 1024 * 1024;
+    private static final int REFRESH_CHUNK = 1024 * 1024;
+
+    /**
+     * There are a couple of namespaces, each holding a file lock, two open files and an index that
+     * is bounded by the size of the cache.
+     */
+    private static final Map<String, PersistentCache> INSTANCES = new HashMap<>();
+
+    private final Path dir;
+    private final String namespace;
+    private final long maxBytes;
+    private final FileChannel lock;
+    private Generation current;
+
+    @Nullable
+    private Generation previous;
+
+    PersistentCache(Path dir, String namespace, long maxBytes) {
+        this.dir = dir;
+        this.namespace = namespace;
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(dir);
+            lock = FileChannel.open(dir.resolve(namespace + ".lock"), CREATE, WRITE);
+            try (FileLock ignored = lock.lock()) {
+                List<Long> generations = generations();
+                long latest = generations.isEmpty() ? 0 : generations.get(generations.size() - 1);
+                current = new Generation(latest, file(latest));
+                if (generations.contains(latest - 1)) {
+                    previous = new Generation(latest - 1, file(latest - 1));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static synchronized PersistentCache getInstance(String namespace) {
+        return INSTANCES.computeIfAbsent(namespace, n -> new PersistentCache(CACHE_DIR, n, DEFAULT_MAX_BYTES));
+    }
+
+    public synchronized byte @Nullable [] get(String key) {
+        byte[] hash = hash(key);
+        try {
+            byte[] value = current.get(hash);
+            if (value == null && (current.channel.size() > current.position || isBehind())) {
+                // another process may have computed it since
+                try (FileLock ignored = lock.lock()) {
+                    sync();
+                }
+                value = current.get(hash);
+            }
+            if (value == null && previous != null) {
+                value = previous.get(hash);
+                if (value != null) {
+                    append(Collections.singletonMap(ByteBuffer.wrap(hash), value));
+                }
+            }
+            return value;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public @Nullable String getString(String key) {
+        byte[] value = get(key);
+        return value == null ? null : new String(value, UTF_8);
+    }
+
+    public void put(String key, byte[] value) {
+        putAll(Collections.singletonMap(key, value));
+    }
+
+    public void putString(String key, String value) {
+        put(key, value.getBytes(UTF_8));
+    }
+
+    /**
+     * Store all the entries with a single file lock and write.
+     */
+    public synchronized void putAll(Map<String, byte[]> entries) {
+        Map<ByteBuffer, byte[]> hashed = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            hashed.put(ByteBuffer.wrap(hash(entry.getKey())), entry.getValue());
+        }
+        try {
+            append(hashed);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void putAllStrings(Map<String, String> entries) {
+        Map<String, byte[]> bytes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            bytes.put(entry.getKey(), entry.getValue().getBytes(UTF_8));
+        }
+        putAll(bytes);
+    }
+
+    /**
+     * @return the size of the files of both generations.
+     */
+    synchronized long size() {
+        try {
+            return current.channel.size() + (previous == null ? 0 : previous.channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void append(Map<ByteBuffer, byte[]> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        int length = 0;
+        for (byte[] value : entries.values()) {
+            length += HEADER_LENGTH + value.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(length);
+        for (Map.Entry<ByteBuffer, byte[]> entry : entries.entrySet()) {
+            records.put(entry.getKey().duplicate()).putInt(entry.getValue().length).put(entry.getValue());
+        }
+        records.flip();
+
+        try (FileLock ignored = lock.lock()) {
+            sync();
+            if (current.position > 0 && current.position + length > maxBytes / 2) {
+                startGeneration();
+            }
+            if (current.channel.size() > current.position) {
+                current.channel.truncate(current.position);
+            }
+            long start = current.position;
+            while (records.hasRemaining()) {
+                current.channel.write(records, start + records.position());
+            }
+            current.refresh();
+        }
+    }
+
+    /**
+     * Catch up with the appends and the new generations of other processes, under the file lock.
+     */
+    private void sync() throws IOException {
+        if (isBehind()) {
+            List<Long> generations = generations();
+            long latest = generations.isEmpty() ? current.number + 1 : generations.get(generations.size() - 1);
+            Generation next = new Generation(latest, file(latest));
+            if (previous != null) {
+                previous.close();
+            }
+            if (latest == current.number + 1) {
+                current.refresh();
+                previous = current;
+            } else {
+                current.close();
+                previous = generations.contains(latest - 1) ? new Generation(latest - 1, file(latest - 1)) : null;
+            }
+            current = next;
+        }
+        current.refresh();
+    }
+
+    /**
+     * @return whether another process started a new generation, and maybe more than one, which
+     * deleted the current generation of this one.
+     */
+    private boolean isBehind() {
+        return Files.exists(file(current.number + 1)) || !Files.exists(file(current.number));
+    }
+
+    private void startGeneration() throws IOException {
+        Generation next = new Generation(current.number + 1, file(current.number + 1));
+        if (previous != null) {
+            previous.close();
+        }
+        previous = current;
+        current = next;
+        for (long generation : generations()) {
+            if (generation < previous.number) {
+                try {
+                    Files.deleteIfExists(file(generation));
+                } catch (IOException ignored) {
+                    // still open in another process on a file system that does not allow it, deleted next time
+                }
+            }
+        }
+    }
+
+    private List<Long> generations() throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, namespace + ".*.cache")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(namespace.length() + 1, name.length() - ".cache".length())));
+                } catch (NumberFormatException ignored) {
+                    // another namespace with a dot in its name
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private Path file(long generation) {
+        return dir.resolve(namespace + "." + generation + ".cache");
+    }
+
+    private static byte[] hash(String key) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An append-only file, with an open addressing table from the first 8 bytes of the hash of
+     * each record to its offset. Two hashes sharing them only cost a miss.
+     */
+    private static class Generation implements Closeable {
+        private final long number;
+        private final FileChannel channel;
+        private long[] keys = new long[1024];
+        private long[] offsets = new long[1024];
+        private int used;
+
+        /**
+         * The length of the file that was indexed.
+         */
+        private long position;
+
+        Generation(long number, Path file) throws IOException {
+            this.number = number;
+            this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+            refresh();
+        }
+
+        byte @Nullable [] get(byte[] hash) throws IOException {
+            long key = key(hash);
+            for (int slot = slot(key, keys.length); keys[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+                if (keys[slot] == key) {
+                    ByteBuffer header = read(ByteBuffer.allocate(HEADER_LENGTH), offsets[slot], HEADER_LENGTH);
+                    byte[] recordHash = new byte[HASH_LENGTH];
+                    header.get(recordHash);
+                    if (!Arrays.equals(recordHash, hash)) {
+                        return null;
+                    }
+                    int length = header.getInt();
+                    return read(ByteBuffer.allocate(length), offsets[slot] + HEADER_LENGTH, length).array();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Index the records appended since the last refresh, stopping before an incomplete one.
+         */
+        void refresh() throws IOException {
+            long size = channel.size();
+            ByteBuffer chunk = ByteBuffer.allocate(REFRESH_CHUNK);
+            while (size - position >= HEADER_LENGTH) {
+                // only the headers are needed, so records are skipped rather than read
+                ByteBuffer headers = read(chunk, position, (int) Math.min(size - position, REFRESH_CHUNK));
+                int start = 0;
+                while (start + HEADER_LENGTH <= headers.limit()) {
+                    int length = headers.getInt(start + HASH_LENGTH);
+                    if (length < 0 || length > MAX_VALUE_LENGTH || position + start + HEADER_LENGTH + length > size) {
+                        position += start;
+                        return;
+                    }
+                    index(headers.getLong(start), position + start);
+                    start += HEADER_LENGTH + length;
+                }
+                position += start;
+            }
+        }
+
+        private void index(long key, long offset) {
+            if ((used + 1) * 2 > keys.length) {
+                // keep the table at most half full, so that probes stay short
+                long[] oldKeys = keys;
+                long[] oldOffsets = offsets;
+                keys = new long[oldKeys.length * 2];
+                offsets = new long[oldKeys.length * 2];
+                used = 0;
+                for (int slot = 0; slot < oldKeys.length; slot++) {
+                    if (oldKeys[slot] != 0) {
+                        index(oldKeys[slot], oldOffsets[slot]);
+                    }
+                }
+            }
+            key = key == 0 ? 1 : key;
+            int slot = slot(key, keys.length);
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                used++;
+            }
+            // the latest record of a hash wins
+            offsets[slot] = offset;
+        }
+
+        private ByteBuffer read(ByteBuffer bytes, long offset, int length) throws IOException {
+            bytes.clear().limit(length);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, offset + bytes.position()) < 0) {
+                    throw new EOFException("Truncated record at " + offset);
+                }
+            }
+            bytes.flip();
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private static long key(byte[] hash) {
+            long key = ByteBuffer.wrap(hash).getLong();
+            return key == 0 ? 1 : key;
+        }
+
+        private static int slot(long key, int slots) {
+            return (int) (key ^ (key >>> 32)) & (slots - 1);
+        }
+    }
+}
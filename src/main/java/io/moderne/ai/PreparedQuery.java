@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A search query whose embeddings have been computed once, to be held for the lifetime
+ * of a recipe run and passed to every scoring call. Create one with {@link RelatedModelClient#prepare(String)}.
+ */
+public class PreparedQuery {
+    @Getter
+    private final String query;
+
+    /**
+     * The query embedded with the model used to rank method signatures.
+     */
+    @Getter
+    private final float[] searchEmbedding;
+
+    /**
+     * The query embedded with each model of the relatedness cascade, including any query instruction
+     * the model expects.
+     */
+    final float[][] cascadeEmbeddings;
+
+    /**
+     * The cascade scores of snippets against this query, where scores of models that were not
+     * consulted are {@code NaN}. The arrays are never modified once stored, since visitors read them concurrently.
+     */
+    final Map<String, double[]> scoreCache = Collections.synchronizedMap(new LinkedHashMap<String, double[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+            return size() > 10_000;
+        }
+    });
+
+    PreparedQuery(String query, float[] searchEmbedding, float[][] cascadeEmbeddings) {
+        this.query = query;
+        this.searchEmbedding = searchEmbedding;
+        this.cascadeEmbeddings = cascadeEmbeddings;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import java.util.ArrayList;
+
+/**
+ * Parses a numbered list of recommendations such as {@code "1. Use X 2. Use Y"} as it is
+ * being generated. Text can be fed in arbitrary chunks, and an item is complete as soon as
+ * the marker of the next item ({@code 2.}, {@code 2:} or {@code 2-} followed by whitespace)
+ * has been seen, so that generation can be stopped once enough items are complete. Markers
+ * must be numbered in sequence, so numbers inside an item like {@code "Java 17. "} are kept.
+ */
+class RecommendationParser {
+    private static final int TEXT = 0;
+    private static final int DIGITS = 1;
+    private static final int PUNCTUATION = 2;
+
+    private final ArrayList<String> items = new ArrayList<>();
+    private final StringBuilder item = new StringBuilder();
+    private final StringBuilder marker = new StringBuilder();
+
+    private int state = TEXT;
+    private int number;
+    private int nextNumber = 1;
+    private boolean inItem;
+    private char previous = ' ';
+
+    public RecommendationParser feed(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            feed(text.charAt(i));
+        }
+        return this;
+    }
+
+    private void feed(char c) {
+        if (state == DIGITS) {
+            if (isDigit(c)) {
+                marker.append(c);
+                number = number * 10 + (c - '0');
+            } else if (c == '.' || c == ':' || c == '-') {
+                marker.append(c);
+                state = PUNCTUATION;
+            } else {
+                abandonMarker();
+                text(c);
+            }
+        } else if (state == PUNCTUATION) {
+            if (Character.isWhitespace(c) && number == nextNumber) {
+                completeItem();
+                marker.setLength(0);
+                nextNumber++;
+                inItem = true;
+                state = TEXT;
+            } else {
+                abandonMarker();
+                text(c);
+            }
+        } else {
+            text(c);
+        }
+        previous = c;
+    }
+
+    private void text(char c) {
+        if (isDigit(c) && !isWordCharacter(previous)) {
+            marker.append(c);
+            number = c - '0';
+            state = DIGITS;
+        } else if (inItem) {
+            item.append(c);
+        }
+    }
+
+    private void abandonMarker() {
+        if (inItem) {
+            item.append(marker);
+        }
+        marker.setLength(0);
+        state = TEXT;
+    }
+
+    private void completeItem() {
+        if (inItem) {
+            String recommendation = item.toString().trim();
+            if (!recommendation.isEmpty()) {
+                items.add(recommendation);
+            }
+            item.setLength(0);
+        }
+    }
+
+    /**
+     * Signal the end of the generated text, completing the last item.
+     */
+    public ArrayList<String> finish() {
+        if (state == DIGITS) {
+            abandonMarker();
+        }
+        completeItem();
+        inItem = false;
+        return items;
+    }
+
+    /**
+     * @return the items that are known to be complete so far.
+     */
+    public ArrayList<String> getItems() {
+        return items;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -15,170 +15,256 @@
  */
 package io.moderne.ai;
 
-import kong.unirest.HeaderNames;
-import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
-import kong.unirest.UnirestException;
 import lombok.Value;
 import org.jspecify.annotations.Nullable;
 
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.time.Duration;
-import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.function.Function;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static java.util.Objects.requireNonNull;
 
+/**
+ * Decides whether a code snippet is related to a natural language query with a cascade of
+ * embedding models. Each model either gives a confident answer or defers to the next one,
+ * and the generative model is only consulted when every embedding model is unsure.
+ * <p>
+ * The query is embedded once per model by {@link #prepare(String)}, and snippets are embedded
+ * by the {@link EmbeddingModelClient} server, which caches them and can embed them in batches.
+ * The raw scores are cached rather than the verdicts, so that different thresholds can be
+ * applied with {@link #classify(List, List)} without calling the models again.
+ */
 public class RelatedModelClient {
-    private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(3);
-    private static final Path MODELS_DIR = Paths.get(System.getProperty("user.home") + "/.moderne/models");
+    private static final String QUERY_INSTRUCTION = "Represent this sentence for searching relevant passages: ";
+
+    public static final List<Band> DEFAULT_BANDS = Collections.unmodifiableList(Arrays.asList(
+            new Band(1 - 0.3815, 1 - 0.1624),
+            new Band(1 - 0.84894, 1 - 0.84572)
+    ));
 
     @Nullable
     private static RelatedModelClient INSTANCE;
 
-    private final Map<Related, Integer> relatedCache = Collections.synchronizedMap(new LinkedHashMap<Related, Integer>() {
-        @Override
-        protected boolean removeEldestEntry(java.util.Map.Entry<Related, Integer> eldest) {
-            return size() > 1000;
-        }
-    });
+    private final EmbeddingModelClient embeddingModelClient;
 
-    static {
-        if (!Files.exists(MODELS_DIR) && !MODELS_DIR.toFile().mkdirs()) {
-            throw new IllegalStateException("Unable to create models directory at " + MODELS_DIR);
-        }
+    private final List<Scorer> scorers = Arrays.asList(
+            // distance between normalized embeddings
+            new Scorer(EmbeddingModelClient.BGE_MICRO, "", 0, 0),
+            // distance mapped onto [0, 1] with a scaled sigmoid
+            new Scorer(EmbeddingModelClient.BGE_LARGE, QUERY_INSTRUCTION, 18.0, 0.1)
+    );
+
+    private RelatedModelClient(EmbeddingModelClient embeddingModelClient) {
+        this.embeddingModelClient = embeddingModelClient;
     }
 
     public static synchronized RelatedModelClient getInstance() {
         if (INSTANCE == null) {
-            INSTANCE = new RelatedModelClient();
-            if (INSTANCE.checkForUpRequest() != 200) {
-                String cmd = "python3 'import gradio\ngradio.'";
-                try {
-                    Process proc = Runtime.getRuntime().exec(new String[]{"/bin/sh", "-c", cmd});
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-
-                INSTANCE.start();
-            }
+            INSTANCE = new RelatedModelClient(EmbeddingModelClient.getInstance());
         }
         return INSTANCE;
     }
 
-    private void start() {
-        Path pyLauncher = MODELS_DIR.resolve("get_is_related.py");
-        try {
-            Files.copy(requireNonNull(RelatedModelClient.class.getResourceAsStream("/get_is_related.py")), pyLauncher, StandardCopyOption.REPLACE_EXISTING);
-            StringWriter sw = new StringWriter();
-            PrintWriter procOut = new PrintWriter(sw);
-            String cmd = String.format("python3 %s/get_is_related.py", MODELS_DIR);
-            Process proc = Runtime.getRuntime().exec(new String[]{"/bin/sh", "-c", cmd});
-            EXECUTOR_SERVICE.submit(() -> {
-                new BufferedReader(new InputStreamReader(proc.getInputStream())).lines()
-                        .forEach(procOut::println);
-                new BufferedReader(new InputStreamReader(proc.getErrorStream())).lines()
-                        .forEach(procOut::println);
-            });
-
-            if (!checkForUp(proc)) {
-                throw new IllegalStateException("Unable to start model daemon. Output of process is:\n" + sw);
-            }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    /**
+     * Embed the query with the search model and with every model of the cascade.
+     */
+    public PreparedQuery prepare(String query) {
+        float[] searchEmbedding = embeddingModelClient.getEmbedding(EmbeddingModelClient.BGE_SMALL, query);
+        float[][] cascadeEmbeddings = new float[scorers.size()][];
+        for (int i = 0; i < scorers.size(); i++) {
+            Scorer scorer = scorers.get(i);
+            cascadeEmbeddings[i] = embeddingModelClient.getEmbedding(scorer.model, scorer.queryPrefix + query);
         }
+        return new PreparedQuery(query, searchEmbedding, cascadeEmbeddings);
     }
 
-    private boolean checkForUp(Process proc) {
-        for (int i = 0; i < 60; i++) {
-            try {
-                if (!proc.isAlive() && proc.exitValue() != 0) {
-                    return false;
-                }
-                if (checkForUpRequest() == 200) {
-                    return true;
+    public Relatedness getRelatedness(PreparedQuery query, String snippet) {
+        return getRelatedness(query, snippet, DEFAULT_BANDS, null);
+    }
+
+    public Relatedness getRelatedness(PreparedQuery query, String snippet, @Nullable Prefetched prefetched) {
+        return getRelatedness(query, snippet, DEFAULT_BANDS, prefetched);
+    }
+
+    public Relatedness getRelatedness(PreparedQuery query, String snippet, List<Band> bands) {
+        return getRelatedness(query, snippet, bands, null);
+    }
+
+    /**
+     * Score the snippet with each model of the cascade until one of them is confident
+     * according to its band.
+     *
+     * @param bands      the band of each model of the cascade.
+     * @param prefetched the embeddings of a batch that the snippet may belong to, which are used
+     *                   before the cache of the {@link EmbeddingModelClient}.
+     */
+    public Relatedness getRelatedness(PreparedQuery query, String snippet, List<Band> bands,
+                                      @Nullable Prefetched prefetched) {
+        checkBands(bands.size());
+        List<Duration> timings = new ArrayList<>(2);
+        double[] stored = query.scoreCache.get(snippet);
+        // other visitors may read the stored scores, so a copy is updated and put back
+        double[] cached;
+        if (stored == null) {
+            cached = new double[scorers.size()];
+            Arrays.fill(cached, Double.NaN);
+        } else {
+            cached = stored.clone();
+        }
+        List<@Nullable Double> scores = new ArrayList<>(Collections.nCopies(scorers.size(), null));
+        boolean scored = false;
+        for (int i = 0; i < scorers.size(); i++) {
+            if (Double.isNaN(cached[i])) {
+                Scorer scorer = scorers.get(i);
+                float[] s = prefetched == null ? null : prefetched.getEmbedding(scorer.model, snippet);
+                if (s == null) {
+                    s = embeddingModelClient.getCachedEmbedding(scorer.model, snippet, timings);
                 }
-                Thread.sleep(1_000);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                cached[i] = scorer.score(query.cascadeEmbeddings[i], s);
+                scored = true;
+            }
+            scores.set(i, cached[i]);
+            if (bands.get(i).classify(cached[i]) != 0) {
+                break;
             }
         }
-        return false;
+        if (scored) {
+            query.scoreCache.put(snippet, cached);
+        }
+        return new Relatedness(requireNonNull(classify(scores, bands)), scores, timings);
     }
 
-    private int checkForUpRequest() {
-        try {
-            HttpResponse<String> response = Unirest.head("http://127.0.0.1:7871").asString();
-            return response.getStatus();
-        } catch (UnirestException e) {
-            return 523;
+    /**
+     * Re-apply a cascade of bands to scores previously returned in {@link Relatedness#getScores()}.
+     *
+     * @param bands the band of each model of the cascade.
+     * @return -1 for a negative match, 0 when unsure and 1 for a positive match, or null when the
+     * bands defer to a model that was not consulted for these scores, in which case
+     * {@link #getRelatedness(PreparedQuery, String, List)} scores the snippet with it.
+     */
+    public static @Nullable Integer classify(List<@Nullable Double> scores, List<Band> bands) {
+        if (bands.size() != scores.size()) {
+            throw new IllegalArgumentException("Expected a band for each of the " + scores.size() +
+                                               " models of the cascade, got " + bands.size());
+        }
+        for (int i = 0; i < scores.size(); i++) {
+            Double score = scores.get(i);
+            if (score == null) {
+                return null;
+            }
+            int result = bands.get(i).classify(score);
+            if (result != 0) {
+                return result;
+            }
         }
+        return 0;
     }
 
-    public Relatedness getRelatedness(String t1, String t2) {
-        List<Duration> timings = new ArrayList<>(2);
-        Related related = new Related(t1, t2);
-        int b1 = relatedCache.computeIfAbsent(related, timeEmbedding(timings));
-        return new Relatedness(b1, timings);
+    private void checkBands(int bands) {
+        if (bands != scorers.size()) {
+            throw new IllegalArgumentException("Expected a band for each of the " + scorers.size() +
+                                               " models of the cascade, got " + bands);
+        }
     }
 
-    private Function<Related, Integer> timeEmbedding(List<Duration> timings) {
-        return t -> {
-            long start = System.nanoTime();
-            int b = getRelated(t.t1, t.t2);
-            if (timings.isEmpty()) {
-                timings.add(Duration.ofNanos(System.nanoTime() - start));
-            }
-            return b;
-        };
+    /**
+     * Embed all snippets with every model of the cascade in one batched request per model.
+     *
+     * @return the embeddings, to be passed to {@link #getRelatedness(PreparedQuery, String, Prefetched)}.
+     */
+    public Prefetched prefetch(Collection<String> snippets) {
+        Map<String, EmbeddingModelClient.Batch> batches = new HashMap<>();
+        for (Scorer scorer : scorers) {
+            batches.put(scorer.model, embeddingModelClient.prefetch(scorer.model, snippets));
+        }
+        return new Prefetched(batches);
     }
 
-    public int getRelated(String s1, String s2) {
-        HttpResponse<GradioResponse> response = Unirest.post("http://127.0.0.1:7871/run/predict")
-                .header(HeaderNames.CONTENT_TYPE, "application/json")
-                .body(new GradioRequest(new Object[]{s1, s2}))
-                .asObject(GradioResponse.class);
-        if (!response.isSuccess()) {
-            throw new IllegalStateException("Unable to get if related. HTTP " + response.getStatus());
+    @Value
+    private static class Scorer {
+        String model;
+        String queryPrefix;
+
+        /**
+         * When the scale is zero, the raw distance is used as the score.
+         */
+        double sigmoidShift;
+        double sigmoidScale;
+
+        double score(float[] query, float[] snippet) {
+            double distance = EmbeddingModelClient.dist(query, snippet);
+            if (sigmoidScale == 0) {
+                return distance;
+            }
+            return 1 / (1 + Math.exp(-sigmoidScale * (distance - sigmoidShift)));
         }
-        return response.getBody().isRelated();
     }
 
+    /**
+     * A lower score indicates a closer match. Scores at or below the true threshold are a positive
+     * match, scores at or above the false threshold are a negative match, and anything in between is unsure.
+     */
     @Value
-    private static class GradioRequest {
-        Object[] data;
+    public static class Band {
+        double trueThreshold;
+        double falseThreshold;
+
+        /**
+         * @return -1 for a negative match, 0 when unsure and 1 for a positive match.
+         */
+        public int classify(double score) {
+            if (score >= falseThreshold) {
+                return -1;
+            } else if (score <= trueThreshold) {
+                return 1;
+            }
+            return 0;
+        }
     }
 
     @Value
-    private static class GradioResponse {
-        String[] data;
+    public static class Prefetched {
+        /**
+         * The batch embedded by each model of the cascade.
+         */
+        Map<String, EmbeddingModelClient.Batch> batches;
 
-        public int isRelated() {
-            return Integer.parseInt(data[0]);
+        public float @Nullable [] getEmbedding(String model, String snippet) {
+            EmbeddingModelClient.Batch batch = batches.get(model);
+            return batch == null ? null : batch.getEmbeddings().get(snippet);
+        }
+
+        /**
+         * @return the timings of the batched requests.
+         */
+        public List<Duration> getTimings() {
+            List<Duration> timings = new ArrayList<>(batches.size());
+            for (EmbeddingModelClient.Batch batch : batches.values()) {
+                timings.addAll(batch.getTimings());
+            }
+            return timings;
         }
     }
 
     @Value
     public static class Relatedness {
         int isRelated;
+
+        /**
+         * The score of each model of the cascade, in cascade order, or null for the models that were
+         * not consulted because an earlier one was confident.
+         */
+        List<@Nullable Double> scores;
+
         List<Duration> embeddingTimings;
 
         public int isRelated() {
             return isRelated;
         }
     }
-
-    @Value
-    public static class Related {
-        String t1;
-        String t2;
-    }
-
-
 }
@@ -15,22 +15,41 @@
  */
 package io.moderne.ai;
 
+import io.moderne.ai.table.CommentRepairStatistics;
 import lombok.EqualsAndHashCode;
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
 import org.openrewrite.ExecutionContext;
+import org.openrewrite.Option;
 import org.openrewrite.Recipe;
 import org.openrewrite.TreeVisitor;
 import org.openrewrite.internal.ListUtils;
 import org.openrewrite.java.JavaIsoVisitor;
 import org.openrewrite.java.JavadocVisitor;
+import org.openrewrite.java.tree.J;
 import org.openrewrite.java.tree.Javadoc;
 import org.openrewrite.java.tree.Space;
 import org.openrewrite.java.tree.TextComment;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
 @Value
 @EqualsAndHashCode(callSuper = false)
 public class SpellCheckCommentsInFrench extends Recipe {
 
+    @Option(displayName = "Fast path confidence",
+            description = "Comments are first classified by an in-process character n-gram model, and the language " +
+                          "model is only called when its confidence is below this cutoff. Set it above 1 to always call " +
+                          "the language model. Defaults to 0.99.",
+            example = "0.99",
+            required = false)
+    @Nullable
+    Double fastPathConfidence;
+
+    transient CommentRepairStatistics commentRepairStatistics = new CommentRepairStatistics(this);
+
     @Override
     public String getDisplayName() {
         return "Fix mis-encoded comments in French";
@@ -38,26 +57,67 @@ public class SpellCheckCommentsInFrench extends Recipe {
 
     @Override
     public String getDescription() {
-        return "Use spellchecker to fix mis-encoded French comments. Mis-encoded comments will contain either '?' or '�'.";
+        return "Use spellchecker to fix mis-encoded French comments. Mis-encoded comments will contain either '?' or '�', " +
+               "so the language of other comments is not detected.";
     }
 
     @Override
     public TreeVisitor<?, ExecutionContext> getVisitor() {
         return new JavaIsoVisitor<ExecutionContext>() {
 
+            @Override
+            public J.CompilationUnit visitCompilationUnit(J.CompilationUnit cu, ExecutionContext ctx) {
+                getCursor().putMessage("countComments", new AtomicInteger());
+                getCursor().putMessage("countDetections", new AtomicInteger());
+                getCursor().putMessage("countFixed", new AtomicInteger());
+                try {
+                    return super.visitCompilationUnit(cu, ctx);
+                } finally {
+                    int comments = requireNonNull(getCursor().<AtomicInteger>getMessage("countComments")).get();
+                    if (comments > 0) {
+                        int detections = requireNonNull(getCursor().<AtomicInteger>getMessage("countDetections")).get();
+                        commentRepairStatistics.insertRow(ctx, new CommentRepairStatistics.Row(
+                                cu.getSourcePath().toString(),
+                                comments,
+                                comments - detections,
+                                detections,
+                                requireNonNull(getCursor().<AtomicInteger>getMessage("countFixed")).get()));
+                    }
+                }
+            }
+
             @Override
             protected JavadocVisitor<ExecutionContext> getJavadocVisitor() {
-                return new JavadocVisitor<ExecutionContext>(this) {
+                JavaIsoVisitor<ExecutionContext> javaVisitor = this;
+                return new JavadocVisitor<ExecutionContext>(javaVisitor) {
                     @Override
                     public Javadoc visitDocComment(Javadoc.DocComment javadoc, ExecutionContext ctx) {
                         Javadoc.DocComment dc = (Javadoc.DocComment) super.visitDocComment(javadoc, ctx);
 
-                        dc = dc.withBody(ListUtils.map(dc.getBody(), docLine -> {
+                        // the language of a Javadoc is detected on its whole text, which is only
+                        // worth doing when one of its lines can be repaired
+                        StringBuilder text = new StringBuilder();
+                        boolean repairable = false;
+                        for (Javadoc docLine : dc.getBody()) {
+                            if (docLine instanceof Javadoc.Text) {
+                                String commentText = ((Javadoc.Text) docLine).getText();
+                                text.append(commentText).append(' ');
+                                repairable |= SpellCheckerClient.isRepairable(commentText);
+                            }
+                        }
+                        if (text.toString().trim().isEmpty()) {
+                            return dc;
+                        }
+                        requireNonNull(javaVisitor.getCursor().<AtomicInteger>getNearestMessage("countComments")).incrementAndGet();
+                        if (!repairable || !isFrench(text.toString())) {
+                            return dc;
+                        }
+
+                        Javadoc.DocComment fixed = dc.withBody(ListUtils.map(dc.getBody(), docLine -> {
                             if (docLine instanceof Javadoc.Text) {
                                 String commentText = ((Javadoc.Text) docLine).getText();
-                                if (!commentText.trim().isEmpty() && "fr".equals(LanguageDetectorModelClient.getInstance()
-                                        .getLanguage(commentText).getLanguage())) {
-                                    String fixedComment = SpellCheckerClient.getInstance().getCommentGradio(commentText);
+                                if (SpellCheckerClient.isRepairable(commentText)) {
+                                    String fixedComment = SpellCheckerClient.getInstance().fixComment(commentText);
                                     if (!fixedComment.equals(commentText)) {
                                         docLine = ((Javadoc.Text) docLine).withText(fixedComment);
                                     }
@@ -65,8 +125,10 @@ public class SpellCheckCommentsInFrench extends Recipe {
                             }
                             return docLine;
                         }));
-
-                        return dc;
+                        if (fixed != dc) {
+                            requireNonNull(javaVisitor.getCursor().<AtomicInteger>getNearestMessage("countFixed")).incrementAndGet();
+                        }
+                        return fixed;
                     }
                 };
             }
@@ -78,10 +140,14 @@ public class SpellCheckCommentsInFrench extends Recipe {
                     if (c instanceof TextComment) {
                         TextComment tc = (TextComment) c;
                         String commentText = tc.getText();
-                        if (!commentText.isEmpty() && "fr".equals(LanguageDetectorModelClient.getInstance()
-                                .getLanguage(commentText).getLanguage())) {
-                            String fixedComment = SpellCheckerClient.getInstance().getCommentGradio(commentText);
+                        if (commentText.isEmpty()) {
+                            return c;
+                        }
+                        requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countComments")).incrementAndGet();
+                        if (SpellCheckerClient.isRepairable(commentText) && isFrench(commentText)) {
+                            String fixedComment = SpellCheckerClient.getInstance().fixComment(commentText);
                             if (!fixedComment.equals(commentText)) {
+                                requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countFixed")).incrementAndGet();
                                 return tc.withText(fixedComment);
                             }
                         }
@@ -89,6 +155,11 @@ public class SpellCheckCommentsInFrench extends Recipe {
                     return c;
                 }));
             }
+
+            private boolean isFrench(String text) {
+                requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countDetections")).incrementAndGet();
+                return "fr".equals(LanguageDetectorModelClient.detectLanguage(text, fastPathConfidence).getLanguage());
+            }
         };
     }
 }
@@ -15,18 +15,36 @@
  */
 package io.moderne.ai;
 
+import io.moderne.ai.table.CommentRepairStatistics;
 import lombok.EqualsAndHashCode;
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
 import org.openrewrite.ExecutionContext;
+import org.openrewrite.Option;
 import org.openrewrite.Recipe;
 import org.openrewrite.TreeVisitor;
 import org.openrewrite.maven.MavenIsoVisitor;
 import org.openrewrite.xml.tree.Xml;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Objects.requireNonNull;
+
 @Value
 @EqualsAndHashCode(callSuper = false)
 public class SpellCheckCommentsInFrenchPomXml extends Recipe {
 
+    @Option(displayName = "Fast path confidence",
+            description = "Comments are first classified by an in-process character n-gram model, and the language " +
+                          "model is only called when its confidence is below this cutoff. Set it above 1 to always call " +
+                          "the language model. Defaults to 0.99.",
+            example = "0.99",
+            required = false)
+    @Nullable
+    Double fastPathConfidence;
+
+    transient CommentRepairStatistics commentRepairStatistics = new CommentRepairStatistics(this);
+
     @Override
     public String getDisplayName() {
         return "Fix mis-encoded comments in French in pom.xml files";
@@ -34,19 +52,49 @@ public class SpellCheckCommentsInFrenchPomXml extends Recipe {
 
     @Override
     public String getDescription() {
-        return "Use spellchecker to fix mis-encoded French comments in pom.xml files. Mis-encoded comments will contain either '?' or '�'.";
+        return "Use spellchecker to fix mis-encoded French comments in pom.xml files. Mis-encoded comments will contain either '?' or '�', " +
+               "so the language of other comments is not detected.";
     }
 
     @Override
     public TreeVisitor<?, ExecutionContext> getVisitor() {
         return new MavenIsoVisitor<ExecutionContext>() {
+            @Override
+            public Xml.Document visitDocument(Xml.Document document, ExecutionContext ctx) {
+                getCursor().putMessage("countComments", new AtomicInteger());
+                getCursor().putMessage("countDetections", new AtomicInteger());
+                getCursor().putMessage("countFixed", new AtomicInteger());
+                try {
+                    return super.visitDocument(document, ctx);
+                } finally {
+                    int comments = requireNonNull(getCursor().<AtomicInteger>getMessage("countComments")).get();
+                    if (comments > 0) {
+                        int detections = requireNonNull(getCursor().<AtomicInteger>getMessage("countDetections")).get();
+                        commentRepairStatistics.insertRow(ctx, new CommentRepairStatistics.Row(
+                                document.getSourcePath().toString(),
+                                comments,
+                                comments - detections,
+                                detections,
+                                requireNonNull(getCursor().<AtomicInteger>getMessage("countFixed")).get()));
+                    }
+                }
+            }
+
             @Override
             public Xml.Comment visitComment(Xml.Comment comment, ExecutionContext ctx) {
                 String commentText = comment.getText();
-                if (!commentText.isEmpty() && "fr".equals(LanguageDetectorModelClient.getInstance()
-                        .getLanguage(commentText).getLanguage())) {
-                    String fixedComment = SpellCheckerClient.getInstance().getCommentGradio(commentText);
+                if (commentText.isEmpty()) {
+                    return comment;
+                }
+                requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countComments")).incrementAndGet();
+                if (!SpellCheckerClient.isRepairable(commentText)) {
+                    return comment;
+                }
+                requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countDetections")).incrementAndGet();
+                if ("fr".equals(LanguageDetectorModelClient.detectLanguage(commentText, fastPathConfidence).getLanguage())) {
+                    String fixedComment = SpellCheckerClient.getInstance().fixComment(commentText);
                     if (!fixedComment.equals(commentText)) {
+                        requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countFixed")).incrementAndGet();
                         return comment.withText(fixedComment);
                     }
                 }
@@ -15,45 +15,49 @@
  */
 package io.moderne.ai;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.cfg.ConstructorDetector;
-import com.fasterxml.jackson.databind.json.JsonMapper;
-import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
-import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
-import kong.unirest.UnirestException;
 import lombok.Value;
 import org.jspecify.annotations.Nullable;
-import org.openrewrite.ipc.http.HttpSender;
-import org.openrewrite.ipc.http.HttpUrlConnectionSender;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import static java.util.Objects.requireNonNull;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+/**
+ * Fixes French comments whose accented characters were lost to a wrong encoding and replaced
+ * by {@code ?} or {@code �}, by looking up each damaged word in a French dictionary with {@link SymSpell}.
+ */
 public class SpellCheckerClient {
-    private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(3);
     private static final Path MODELS_DIR = Paths.get(System.getProperty("user.home") + "/.moderne/models");
+    static String pathToDictionary = "/app/fr-1M.txt";
+
+    private static final String ACCENTS = "àâæçéèêëîïôœùûüÿÀÂÆÇÉÈÊËÎÏÔŒÙÛÜŸ";
 
-    private final ObjectMapper mapper = JsonMapper.builder()
-            .constructorDetector(ConstructorDetector.USE_PROPERTIES_BASED)
-            .build()
-            .registerModule(new ParameterNamesModule())
-            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    /**
+     * Splits a word from its trailing punctuation, keeping a trailing {@code ?} or {@code �} in the word.
+     */
+    private static final Pattern SPLIT_WORD = Pattern.compile("(.*?[?�]?)([^a-zA-Z?�]*)", Pattern.DOTALL);
 
     @Nullable
     private static SpellCheckerClient INSTANCE;
 
+    private final SymSpell symSpell;
+
+    @Nullable
+    private final PersistentCache fixedComments;
+
+    /**
+     * Identifies the dictionary in the keys of {@link #fixedComments}, so that fixes made with
+     * another dictionary are not reused.
+     */
+    private final String dictionaryVersion;
 
     static {
         if (!Files.exists(MODELS_DIR) && !MODELS_DIR.toFile().mkdirs()) {
@@ -61,107 +65,136 @@ public class SpellCheckerClient {
         }
     }
 
+    SpellCheckerClient(SymSpell symSpell) {
+        this(symSpell, null, "");
+    }
+
+    SpellCheckerClient(SymSpell symSpell, @Nullable PersistentCache fixedComments, String dictionaryVersion) {
+        this.symSpell = symSpell;
+        this.fixedComments = fixedComments;
+        this.dictionaryVersion = dictionaryVersion;
+    }
+
     public static synchronized SpellCheckerClient getInstance() {
         if (INSTANCE == null) {
-            INSTANCE = new SpellCheckerClient();
-            if (INSTANCE.checkForUpRequest() != 200) {
-                INSTANCE.start();
+            try {
+                Path dictionary = Paths.get(pathToDictionary);
+                INSTANCE = new SpellCheckerClient(SymSpell.open(dictionary, MODELS_DIR.resolve("fr-1M.symspell")),
+                        PersistentCache.getInstance("spellcheck-fr"),
+                        Files.size(dictionary) + ":" + Files.getLastModifiedTime(dictionary).toMillis());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
         return INSTANCE;
     }
 
-    private void start() {
-        Path pyLauncher = MODELS_DIR.resolve("spellcheck_comment_french.py");
-        try {
-            Files.copy(requireNonNull(SpellCheckerClient.class.getResourceAsStream("/spellcheck_comment_french.py")), pyLauncher, StandardCopyOption.REPLACE_EXISTING);
-            StringWriter sw = new StringWriter();
-            PrintWriter procOut = new PrintWriter(sw);
-            String cmd = String.format("python3 %s/spellcheck_comment_french.py", MODELS_DIR);
-            Process proc = Runtime.getRuntime().exec(new String[]{"/bin/sh", "-c", cmd});
-            EXECUTOR_SERVICE.submit(() -> {
-                new BufferedReader(new InputStreamReader(proc.getInputStream())).lines()
-                        .forEach(procOut::println);
-                new BufferedReader(new InputStreamReader(proc.getErrorStream())).lines()
-                        .forEach(procOut::println);
-            });
-
-            if (!checkForUp(proc)) {
-                throw new IllegalStateException("Unable to start model daemon. Output of process is:\n" + sw);
-            }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
-        }
+    /**
+     * @return true if the comment has a character that {@link #fixComment(String)} may replace, which
+     * is cheap to tell and lets callers skip the language detection of every other comment.
+     */
+    public static boolean isRepairable(String comment) {
+        return comment.indexOf('?') >= 0 || comment.indexOf('�') >= 0;
     }
 
-    private boolean checkForUp(Process proc) {
-        for (int i = 0; i < 60; i++) {
-            try {
-                if (!proc.isAlive() && proc.exitValue() != 0) {
-                    return false;
-                }
-                if (checkForUpRequest() == 200) {
-                    return true;
-                }
-                Thread.sleep(1_000);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+    public String fixComment(String comment) {
+        if (fixedComments == null || !isRepairable(comment)) {
+            return fixLines(comment);
         }
-        return false;
+        String key = dictionaryVersion + '\n' + comment;
+        String fixed = fixedComments.getString(key);
+        if (fixed == null) {
+            fixed = fixLines(comment);
+            fixedComments.putString(key, fixed);
+        }
+        return fixed;
     }
 
-    private int checkForUpRequest() {
-        try {
-            HttpResponse<String> response = Unirest.head("http://127.0.0.1:7866").asString();
-            return response.getStatus();
-        } catch (UnirestException e) {
-            return 523;
+    private String fixLines(String comment) {
+        String[] lines = comment.split("\n", -1);
+        List<String> fixedLines = new ArrayList<>(lines.length);
+        for (String line : lines) {
+            fixedLines.add(fixLine(line));
         }
+        return String.join("\n", fixedLines);
     }
 
+    private String fixLine(String line) {
+        String[] words = line.split(" ", -1);
+        List<String> fixedWords = new ArrayList<>(words.length);
+        for (int index = 0; index < words.length; index++) {
+            Matcher matcher = SPLIT_WORD.matcher(words[index]);
+            String word = words[index];
+            String suffix = "";
+            if (matcher.matches()) {
+                word = matcher.group(1);
+                suffix = matcher.group(2);
+            }
+            if (word.endsWith("??")) {
+                word = word.substring(0, word.length() - 1);
+                suffix = "?" + suffix;
+            }
 
-    public String getCommentGradio(String text) {
-
-        HttpSender http = new HttpUrlConnectionSender(Duration.ofSeconds(20), Duration.ofSeconds(30));
-        HttpSender.Response raw = null;
-
-        try {
-            raw = http
-                    .post("http://127.0.0.1:7866/run/predict")
-                    .withContent("application/json",
-                            mapper.writeValueAsBytes(new SpellCheckerClient.GradioRequest(new String[]{text})))
-                    .send();
-        } catch (JsonProcessingException e) {
+            int unknownCharacters = count(word, '?') + count(word, '�');
+            if (unknownCharacters == 0) {
+                fixedWords.add(word + suffix);
+                continue;
+            }
+            // a question mark that ends a sentence
+            if ("?".equals(word) && (index == words.length - 1 || startsWithUpperCase(words[index + 1]))) {
+                fixedWords.add(word);
+                continue;
+            }
+            if (unknownCharacters > SymSpell.MAX_DICTIONARY_EDIT_DISTANCE) {
+                // too damaged to be looked up in the dictionary
+                fixedWords.add(word + suffix);
+                continue;
+            }
 
-            throw new RuntimeException(e);
+            List<SymSpell.Suggestion> suggestions = symSpell.lookup(word, unknownCharacters);
+            if (suggestions.isEmpty()) {
+                fixedWords.add(word);
+                continue;
+            }
+            String fixedWord = suggestions.get(0).getTerm();
+            if (word.endsWith("?") && ACCENTS.indexOf(fixedWord.charAt(fixedWord.length() - 1)) < 0) {
+                // the question mark was punctuation rather than an accented character
+                if (word.substring(0, word.length() - 1).toLowerCase(Locale.ROOT).equals(fixedWord.toLowerCase(Locale.ROOT))) {
+                    fixedWord = word + "?";
+                } else {
+                    fixedWord = fixedWord + "?";
+                }
+            }
+            if (hasAccent(fixedWord)) {
+                fixedWords.add(fixedWord + suffix);
+            } else {
+                fixedWords.add(word);
+            }
         }
+        return String.join(" ", fixedWords);
+    }
 
-
-        if (!raw.isSuccessful()) {
-            throw new IllegalStateException("Unable to get embedding. HTTP " + raw.getClass());
-        }
-        String comment = null;
-        try {
-            comment = mapper.readValue(raw.getBodyAsBytes(), SpellCheckerClient.GradioResponse.class).getSpellCheck();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private static int count(String word, char c) {
+        int count = 0;
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) == c) {
+                count++;
+            }
         }
-        return comment;
+        return count;
     }
 
-    @Value
-    private static class GradioRequest {
-        Object[] data;
+    private static boolean startsWithUpperCase(String word) {
+        return !word.isEmpty() && Character.isUpperCase(word.charAt(0));
     }
 
-    @Value
-    private static class GradioResponse {
-        String[] data;
-
-        public String getSpellCheck() {
-            return data[0];
+    private static boolean hasAccent(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (ACCENTS.indexOf(word.charAt(i)) >= 0) {
+                return true;
+            }
         }
+        return false;
     }
 
     @Value
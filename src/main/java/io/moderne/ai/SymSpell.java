@@ -0,0 +1,529 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import lombok.Value;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A port of the symspellpy lookup with {@code Verbosity.CLOSEST}, a maximum dictionary edit
+ * distance of 2 and a prefix length of 7, returning the same suggestions in the same order.
+ * <p>
+ * Instead of building the deletes of every dictionary word in memory on each start, they are
+ * precomputed once into an index file that is memory-mapped. The index holds the dictionary
+ * words and counts, a hash table of the words, and the deletes as a sorted array of hashes
+ * tagged with the id of their word, so that the words of a delete are found by binary search
+ * in dictionary order.
+ */
+class SymSpell {
+    static final int MAX_DICTIONARY_EDIT_DISTANCE = 2;
+    private static final int PREFIX_LENGTH = 7;
+
+    private static final long MAGIC = 0x53594d5350454c4cL;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 56;
+
+    private final int maxLength;
+    private final int idBits;
+    private final LongBuffer counts;
+    private final IntBuffer offsets;
+    private final CharBuffer chars;
+    private final IntBuffer table;
+    private final LongBuffer deletes;
+
+    private SymSpell(MappedByteBuffer index) {
+        index.position(8 + 4 + 8 + 8);
+        maxLength = index.getInt();
+        int wordCount = index.getInt();
+        idBits = index.getInt();
+        int tableSize = index.getInt();
+        int charCount = index.getInt();
+        long deleteCount = index.getLong();
+
+        int position = HEADER_SIZE;
+        counts = section(index, position).asLongBuffer();
+        counts.limit(wordCount);
+        position += wordCount * 8;
+        offsets = section(index, position).asIntBuffer();
+        offsets.limit(wordCount + 1);
+        position += (wordCount + 1) * 4;
+        chars = section(index, position).asCharBuffer();
+        chars.limit(charCount);
+        position += charCount * 2;
+        table = section(index, position).asIntBuffer();
+        table.limit(tableSize);
+        position += tableSize * 4;
+        deletes = section(index, position).asLongBuffer();
+        deletes.limit((int) deleteCount);
+    }
+
+    private static ByteBuffer section(MappedByteBuffer index, int position) {
+        ByteBuffer duplicate = index.duplicate();
+        duplicate.position(position);
+        return duplicate.slice();
+    }
+
+    /**
+     * Open the index of a dictionary, building it first if it does not exist or if the dictionary
+     * changed since it was built.
+     *
+     * @param dictionary a tab separated file with the term in the second column and its count in the third.
+     */
+    static SymSpell open(Path dictionary, Path index) throws IOException {
+        if (!isUpToDate(dictionary, index)) {
+            build(dictionary, index);
+        }
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            return new SymSpell(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static boolean isUpToDate(Path dictionary, Path index) throws IOException {
+        if (!Files.exists(index)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            return in.readLong() == MAGIC &&
+                   in.readInt() == VERSION &&
+                   in.readLong() == Files.size(dictionary) &&
+                   in.readLong() == Files.getLastModifiedTime(dictionary).toMillis();
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static void build(Path dictionary, Path index) throws IOException {
+        // load the dictionary like symspellpy's load_dictionary(path, term_index=1, count_index=2, separator="\t")
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> words = new ArrayList<>();
+        long[] counts = new long[1024];
+        int maxLength = 0;
+        try (BufferedReader reader = Files.newBufferedReader(dictionary, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = stripTrailingWhitespace(line).split("\t", -1);
+                if (parts.length < 3) {
+                    continue;
+                }
+                long count;
+                try {
+                    count = Long.parseLong(parts[2].trim());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String key = parts[1];
+                if (count <= 0) {
+                    continue;
+                }
+                Integer id = ids.get(key);
+                if (id != null) {
+                    counts[id] = Long.MAX_VALUE - counts[id] > count ? counts[id] + count : Long.MAX_VALUE;
+                    continue;
+                }
+                if (words.size() == counts.length) {
+                    counts = Arrays.copyOf(counts, counts.length * 2);
+                }
+                ids.put(key, words.size());
+                counts[words.size()] = count;
+                words.add(key);
+                maxLength = Math.max(maxLength, key.length());
+            }
+        }
+        int wordCount = words.size();
+        int idBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(wordCount));
+        long hashMask = -1L << idBits;
+
+        long[] deletes = new long[Math.max(1024, wordCount * 16)];
+        int deleteCount = 0;
+        for (int id = 0; id < wordCount; id++) {
+            for (String delete : editsPrefix(words.get(id))) {
+                if (deleteCount == deletes.length) {
+                    deletes = Arrays.copyOf(deletes, deletes.length * 2);
+                }
+                deletes[deleteCount++] = (hash(delete) & hashMask) | id;
+            }
+        }
+        Arrays.parallelSort(deletes, 0, deleteCount);
+
+        int tableSize = 2;
+        while (tableSize < wordCount * 2) {
+            tableSize <<= 1;
+        }
+        int[] table = new int[tableSize];
+        for (int id = 0; id < wordCount; id++) {
+            int slot = (int) hash(words.get(id)) & (tableSize - 1);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            table[slot] = id + 1;
+        }
+
+        int charCount = 0;
+        for (String word : words) {
+            charCount += word.length();
+        }
+        long size = HEADER_SIZE + wordCount * 8L + (wordCount + 1) * 4L + charCount * 2L + tableSize * 4L + deleteCount * 8L;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The dictionary " + dictionary + " is too large to be indexed");
+        }
+
+        Path tmp = Files.createTempFile(index.getParent(), index.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(Files.size(dictionary));
+            out.writeLong(Files.getLastModifiedTime(dictionary).toMillis());
+            out.writeInt(maxLength);
+            out.writeInt(wordCount);
+            out.writeInt(idBits);
+            out.writeInt(tableSize);
+            out.writeInt(charCount);
+            out.writeLong(deleteCount);
+            for (int id = 0; id < wordCount; id++) {
+                out.writeLong(counts[id]);
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (String word : words) {
+                offset += word.length();
+                out.writeInt(offset);
+            }
+            for (String word : words) {
+                out.writeChars(word);
+            }
+            for (int slot : table) {
+                out.writeInt(slot);
+            }
+            for (int i = 0; i < deleteCount; i++) {
+                out.writeLong(deletes[i]);
+            }
+        }
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String stripTrailingWhitespace(String line) {
+        int end = line.length();
+        while (end > 0 && Character.isWhitespace(line.charAt(end - 1))) {
+            end--;
+        }
+        return line.substring(0, end);
+    }
+
+    /**
+     * The deletes of a word, which are all the ways to remove up to the maximum edit distance
+     * characters from its prefix.
+     */
+    private static Set<String> editsPrefix(String key) {
+        Set<String> deletes = new HashSet<>();
+        if (key.length() <= MAX_DICTIONARY_EDIT_DISTANCE) {
+            deletes.add("");
+        }
+        if (key.length() > PREFIX_LENGTH) {
+            key = key.substring(0, PREFIX_LENGTH);
+        }
+        deletes.add(key);
+        edits(key, 0, deletes, 0);
+        return deletes;
+    }
+
+    private static void edits(String word, int editDistance, Set<String> deletes, int currentDistance) {
+        editDistance++;
+        for (int i = currentDistance; i < word.length(); i++) {
+            String delete = word.substring(0, i) + word.substring(i + 1);
+            if (deletes.add(delete) && editDistance < MAX_DICTIONARY_EDIT_DISTANCE) {
+                edits(delete, editDistance, deletes, i);
+            }
+        }
+    }
+
+    /**
+     * @return the closest suggestions, ordered by decreasing count.
+     */
+    List<Suggestion> lookup(String phrase, int maxEditDistance) {
+        if (maxEditDistance > MAX_DICTIONARY_EDIT_DISTANCE) {
+            throw new IllegalArgumentException("Distance too large");
+        }
+        List<Suggestion> suggestions = new ArrayList<>();
+        int phraseLen = phrase.length();
+
+        // word is too big to possibly match any words
+        if (phraseLen - maxEditDistance > maxLength) {
+            return suggestions;
+        }
+
+        int phraseId = wordId(phrase);
+        if (phraseId >= 0) {
+            suggestions.add(new Suggestion(phrase, 0, counts.get(phraseId)));
+            return suggestions;
+        }
+        if (maxEditDistance == 0) {
+            return suggestions;
+        }
+
+        Set<String> consideredDeletes = new HashSet<>();
+        Set<String> consideredSuggestions = new HashSet<>();
+        consideredSuggestions.add(phrase);
+
+        int maxEditDistance2 = maxEditDistance;
+        List<String> candidates = new ArrayList<>();
+        int phrasePrefixLen = Math.min(phraseLen, PREFIX_LENGTH);
+        candidates.add(phrase.substring(0, phrasePrefixLen));
+
+        for (int candidatePointer = 0; candidatePointer < candidates.size(); candidatePointer++) {
+            String candidate = candidates.get(candidatePointer);
+            int candidateLen = candidate.length();
+            int lenDiff = phrasePrefixLen - candidateLen;
+
+            // candidates are ordered by delete distance, so none of the remaining ones is closer
+            if (lenDiff > maxEditDistance2) {
+                break;
+            }
+
+            for (int id : wordsWithDelete(candidate)) {
+                String suggestion = word(id);
+                if (suggestion.equals(phrase)) {
+                    continue;
+                }
+                int suggestionLen = suggestion.length();
+                if (Math.abs(suggestionLen - phraseLen) > maxEditDistance2 ||
+                    suggestionLen < candidateLen ||
+                    (suggestionLen == candidateLen && !suggestion.equals(candidate))) {
+                    continue;
+                }
+                int suggestionPrefixLen = Math.min(suggestionLen, PREFIX_LENGTH);
+                if (suggestionPrefixLen > phrasePrefixLen && suggestionPrefixLen - candidateLen > maxEditDistance2) {
+                    continue;
+                }
+
+                int distance;
+                if (candidateLen == 0) {
+                    // suggestions which have no common chars with the phrase
+                    distance = Math.max(phraseLen, suggestionLen);
+                    if (distance > maxEditDistance2 || consideredSuggestions.contains(suggestion)) {
+                        continue;
+                    }
+                } else if (suggestionLen == 1) {
+                    distance = phrase.indexOf(suggestion.charAt(0)) < 0 ? phraseLen : phraseLen - 1;
+                    if (distance > maxEditDistance2 || consideredSuggestions.contains(suggestion)) {
+                        continue;
+                    }
+                } else {
+                    // when all edits are in the prefix and the suffixes differ, the distance is too large
+                    int minDistance = PREFIX_LENGTH - maxEditDistance == candidateLen ?
+                            Math.min(phraseLen, suggestionLen) - PREFIX_LENGTH : 0;
+                    if (PREFIX_LENGTH - maxEditDistance == candidateLen && minDistance > 1 &&
+                        !phrase.substring(phraseLen + 1 - minDistance).equals(suggestion.substring(suggestionLen + 1 - minDistance)) ||
+                        minDistance > 0 &&
+                        phrase.charAt(phraseLen - minDistance) != suggestion.charAt(suggestionLen - minDistance) &&
+                        (phrase.charAt(phraseLen - minDistance - 1) != suggestion.charAt(suggestionLen - minDistance) ||
+                         phrase.charAt(phraseLen - minDistance) != suggestion.charAt(suggestionLen - minDistance - 1))) {
+                        continue;
+                    }
+                    if (!deleteInSuggestionPrefix(candidate, suggestion) || consideredSuggestions.contains(suggestion)) {
+                        continue;
+                    }
+                    consideredSuggestions.add(suggestion);
+                    distance = osaDistance(phrase, suggestion, maxEditDistance2);
+                    if (distance < 0) {
+                        continue;
+                    }
+                }
+
+                if (distance <= maxEditDistance2) {
+                    if (!suggestions.isEmpty() && distance < maxEditDistance2) {
+                        suggestions.clear();
+                    }
+                    maxEditDistance2 = distance;
+                    suggestions.add(new Suggestion(suggestion, distance, counts.get(id)));
+                }
+            }
+
+            // derive the deletes of the candidate, until the maximum edit distance is reached
+            if (lenDiff < maxEditDistance && candidateLen <= PREFIX_LENGTH) {
+                // do not create edits with an edit distance smaller than the suggestions already found
+                if (lenDiff >= maxEditDistance2) {
+                    continue;
+                }
+                for (int i = 0; i < candidateLen; i++) {
+                    String delete = candidate.substring(0, i) + candidate.substring(i + 1);
+                    if (consideredDeletes.add(delete)) {
+                        candidates.add(delete);
+                    }
+                }
+            }
+        }
+
+        suggestions.sort(Comparator.comparingInt(Suggestion::getDistance)
+                .thenComparing(Suggestion::getCount, Comparator.reverseOrder()));
+        return suggestions;
+    }
+
+    /**
+     * Kept as in symspellpy, including that a character of the suggestion can match several
+     * characters of the delete.
+     */
+    private static boolean deleteInSuggestionPrefix(String delete, String suggestion) {
+        if (delete.isEmpty()) {
+            return true;
+        }
+        int suggestionLen = Math.min(suggestion.length(), PREFIX_LENGTH);
+        int j = 0;
+        for (int i = 0; i < delete.length(); i++) {
+            char delChar = delete.charAt(i);
+            while (j < suggestionLen && delChar != suggestion.charAt(j)) {
+                j++;
+            }
+            if (j == suggestionLen) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Optimal string alignment distance, or -1 when it is larger than {@code maxDistance}.
+     */
+    static int osaDistance(String s1, String s2, int maxDistance) {
+        if (s1.length() > s2.length()) {
+            String s = s1;
+            s1 = s2;
+            s2 = s;
+        }
+        if (s2.length() - s1.length() > maxDistance) {
+            return -1;
+        }
+        int[] previousPrevious = new int[s2.length() + 1];
+        int[] previous = new int[s2.length() + 1];
+        int[] current = new int[s2.length() + 1];
+        for (int j = 0; j <= s2.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= s1.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= s2.length(); j++) {
+                int cost = s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 1;
+                int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && s1.charAt(i - 1) == s2.charAt(j - 2) && s1.charAt(i - 2) == s2.charAt(j - 1)) {
+                    d = Math.min(d, previousPrevious[j - 2] + 1);
+                }
+                current[j] = d;
+            }
+            int[] recycled = previousPrevious;
+            previousPrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        int distance = previous[s2.length()];
+        return distance > maxDistance ? -1 : distance;
+    }
+
+    private int wordId(String word) {
+        int tableSize = table.limit();
+        int slot = (int) hash(word) & (tableSize - 1);
+        int id;
+        while ((id = table.get(slot)) != 0) {
+            if (word.equals(word(id - 1))) {
+                return id - 1;
+            }
+            slot = (slot + 1) & (tableSize - 1);
+        }
+        return -1;
+    }
+
+    private String word(int id) {
+        int start = offsets.get(id);
+        int end = offsets.get(id + 1);
+        char[] word = new char[end - start];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = chars.get(start + i);
+        }
+        return new String(word);
+    }
+
+    /**
+     * The ids of the words that have the delete, in dictionary order.
+     */
+    private List<Integer> wordsWithDelete(String delete) {
+        long hashMask = -1L << idBits;
+        long key = hash(delete) & hashMask;
+        int lo = 0;
+        int hi = deletes.limit();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (deletes.get(mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (int i = lo; i < deletes.limit() && (deletes.get(i) & hashMask) == key; i++) {
+            int id = (int) (deletes.get(i) & ~hashMask);
+            // only keep exact matches, since several deletes can share the same hash
+            if (isDelete(delete, word(id))) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static boolean isDelete(String delete, String word) {
+        String prefix = word.length() > PREFIX_LENGTH ? word.substring(0, PREFIX_LENGTH) : word;
+        if (prefix.length() - delete.length() > MAX_DICTIONARY_EDIT_DISTANCE || delete.length() > prefix.length()) {
+            return false;
+        }
+        if (delete.isEmpty()) {
+            return word.length() <= MAX_DICTIONARY_EDIT_DISTANCE;
+        }
+        int j = 0;
+        for (int i = 0; i < prefix.length() && j < delete.length(); i++) {
+            if (prefix.charAt(i) == delete.charAt(j)) {
+                j++;
+            }
+        }
+        return j == delete.length();
+    }
+
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    @Value
+    static class Suggestion {
+        String term;
+        int distance;
+        long count;
+    }
+}
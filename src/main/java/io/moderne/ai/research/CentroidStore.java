@@ -0,0 +1,274 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.cfg.ConstructorDetector;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.module.paramnames.ParameterNamesModule;
+import io.moderne.ai.EmbeddingMatrix;
+import io.moderne.ai.EmbeddingModelClient;
+import lombok.Value;
+import lombok.experimental.NonFinal;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Centroids of method embeddings shared by the runs of {@link GetRecommendations} over many
+ * repositories, in a JSON file. Only the first repository is clustered from scratch, which gives
+ * the centroids and the sizes of their clusters. Each later repository moves the centroids with
+ * mini-batch k-means steps and is sampled by assigning its methods to the nearest centroid. The recommendations generated for the method closest to a centroid
+ * are kept with it, and reused for the next repositories sampled at that centroid.
+ * <p>
+ * Every read-modify-write of the file holds a file lock, so concurrent runs do not lose updates,
+ * and replaces the file with an atomic move, so a run that dies midway does not lose the store.
+ */
+class CentroidStore {
+    private static final ObjectMapper MAPPER = JsonMapper.builder()
+            .constructorDetector(ConstructorDetector.USE_PROPERTIES_BASED)
+            .build()
+            .registerModule(new ParameterNamesModule())
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private final Path file;
+
+    CentroidStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Update the centroids with the embeddings of a repository, then choose the methods to sample:
+     * for the centroids that most embeddings are assigned to, the embedding closest to the centroid.
+     *
+     * @param cluster         clusters the embeddings of the first repository, returning the indices
+     *                        of the embeddings closest to each cluster center.
+     * @param numberOfCenters the number of methods to sample, or -1 for every centroid that is
+     *                        assigned an embedding. When it is more than the stored centroids,
+     *                        centroids are added, but fewer methods are sampled if fewer centroids
+     *                        are assigned embeddings of this repository.
+     */
+    List<Sample> sample(EmbeddingMatrix embeddings, int numberOfCenters, Function<EmbeddingMatrix, int[]> cluster) {
+        if (embeddings.size() == 0) {
+            return Collections.emptyList();
+        }
+        float[] embedding = new float[embeddings.getDims()];
+        List<Centroid> centroids = update(stored -> {
+            boolean first = stored.isEmpty();
+            if (first) {
+                for (int center : cluster.apply(embeddings)) {
+                    stored.add(new Centroid(embeddings.get(center), 1, null));
+                }
+            }
+            if (stored.get(0).getVector().length != embeddings.getDims()) {
+                throw new IllegalStateException("The centroids of " + file + " have " + stored.get(0).getVector().length +
+                                                " dimensions, the embeddings have " + embeddings.getDims());
+            }
+            seedCentroids(stored, embeddings, numberOfCenters);
+            if (first) {
+                // the centroids are the clustering of these embeddings, which only give them the sizes of their clusters
+                long[] sizes = new long[stored.size()];
+                for (int e = 0; e < embeddings.size(); e++) {
+                    sizes[nearest(stored, embeddings.get(e, embedding))]++;
+                }
+                for (int c = 0; c < stored.size(); c++) {
+                    stored.get(c).count = sizes[c];
+                }
+                return;
+            }
+            for (int e = 0; e < embeddings.size(); e++) {
+                embeddings.get(e, embedding);
+                // online k-means, with a learning rate that decreases as the centroid absorbs embeddings
+                Centroid centroid = stored.get(nearest(stored, embedding));
+                centroid.count++;
+                float[] vector = centroid.getVector();
+                for (int d = 0; d < vector.length; d++) {
+                    vector[d] += (embedding[d] - vector[d]) / centroid.count;
+                }
+            }
+        });
+
+        int[] members = new int[centroids.size()];
+        int[] closest = new int[centroids.size()];
+        double[] closestDistances = new double[centroids.size()];
+        Arrays.fill(closestDistances, Double.MAX_VALUE);
+        for (int e = 0; e < embeddings.size(); e++) {
+            // the closest embedding to each centroid, among the embeddings assigned to it
+            int c = nearest(centroids, embeddings.get(e, embedding));
+            members[c]++;
+            double distance = embeddings.distance(e, centroids.get(c).getVector());
+            if (distance < closestDistances[c]) {
+                closest[c] = e;
+                closestDistances[c] = distance;
+            }
+        }
+
+        List<Integer> populated = new ArrayList<>();
+        for (int c = 0; c < centroids.size(); c++) {
+            if (members[c] > 0) {
+                populated.add(c);
+            }
+        }
+        populated.sort(Comparator.comparingInt((Integer c) -> -members[c]).thenComparing(c -> c));
+        if (numberOfCenters >= 0 && populated.size() > numberOfCenters) {
+            populated = populated.subList(0, numberOfCenters);
+        }
+        List<Sample> samples = new ArrayList<>(populated.size());
+        for (int c : populated) {
+            samples.add(new Sample(c, closest[c], centroids.get(c).getRecommendations()));
+        }
+        return samples;
+    }
+
+    /**
+     * When more centers are asked for than there are centroids, add centroids at the embeddings
+     * farthest from the existing ones, as k-means++ seeding would most likely pick, so that the
+     * number of centroids is not fixed by the first repository. A new centroid counts the embedding
+     * it is seeded with, so that it is averaged with the next embeddings rather than replaced.
+     */
+    private static void seedCentroids(List<Centroid> centroids, EmbeddingMatrix embeddings, int numberOfCenters) {
+        float[] embedding = new float[embeddings.getDims()];
+        while (numberOfCenters > centroids.size()) {
+            int farthest = -1;
+            double farthestDistance = 0;
+            for (int e = 0; e < embeddings.size(); e++) {
+                embeddings.get(e, embedding);
+                double distance = EmbeddingModelClient.dist(embedding, centroids.get(nearest(centroids, embedding)).getVector());
+                if (distance > farthestDistance) {
+                    farthest = e;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest < 0) {
+                // every embedding is already a centroid
+                return;
+            }
+            centroids.add(new Centroid(embeddings.get(farthest), 1, null));
+        }
+    }
+
+    /**
+     * Keep the recommendations generated for the method sampled at a centroid, unless another run
+     * already did.
+     */
+    void putRecommendations(int centroid, List<String> recommendations) {
+        update(stored -> {
+            if (stored.get(centroid).getRecommendations() == null) {
+                stored.get(centroid).recommendations = recommendations;
+            }
+        });
+    }
+
+    List<Centroid> getCentroids() {
+        try {
+            return read();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Centroid> read() throws IOException {
+        return new ArrayList<>(Files.exists(file) && Files.size(file) > 0 ?
+                MAPPER.readValue(file.toFile(), Centroids.class).getCentroids() :
+                Collections.emptyList());
+    }
+
+    private List<Centroid> update(Consumer<List<Centroid>> update) {
+        synchronized (CentroidStore.class) {
+            try {
+                Path dir = file.toAbsolutePath().getParent();
+                Files.createDirectories(dir);
+                // the store is replaced rather than written in place, so the lock is on a file of its own
+                try (FileChannel lock = FileChannel.open(dir.resolve(file.getFileName() + ".lock"), CREATE, WRITE);
+                     FileLock ignored = lock.lock()) {
+                    List<Centroid> centroids = read();
+                    update.accept(centroids);
+
+                    // a run that dies while writing leaves the previous store intact
+                    Path updated = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+                    try {
+                        MAPPER.writeValue(updated.toFile(), new Centroids(centroids));
+                        Files.move(updated, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } finally {
+                        Files.deleteIfExists(updated);
+                    }
+                    return centroids;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static int nearest(List<Centroid> centroids, float[] embedding) {
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < centroids.size(); c++) {
+            double distance = EmbeddingModelClient.dist(embedding, centroids.get(c).getVector());
+            if (distance < nearestDistance) {
+                nearest = c;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    @Value
+    static class Sample {
+        int centroid;
+
+        /**
+         * The index of the embedding closest to the centroid.
+         */
+        int embedding;
+
+        /**
+         * The recommendations already generated for this centroid, if any.
+         */
+        @Nullable
+        List<String> recommendations;
+    }
+
+    @Value
+    static class Centroids {
+        List<Centroid> centroids;
+    }
+
+    @Value
+    static class Centroid {
+        float[] vector;
+
+        @NonFinal
+        long count;
+
+        @NonFinal
+        @Nullable
+        List<String> recommendations;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Semaphore;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The embeddings of code computed by previous runs of {@link GetCodeEmbedding}, keyed by the
+ * SHA-256 of the code, in a directory. Only a memory-mapped index of hashes is read: an open
+ * addressing table of 40 bytes per entry, pointing to the embeddings in a data file that is read
+ * one embedding at a time. So neither memory nor opening the store grows with the number of
+ * embeddings it holds.
+ * <p>
+ * Every run is a generation, and every entry records the last generation that looked it up or
+ * stored it. Beginning a run evicts the entries that the latest run did not see, which are code
+ * that has since changed or been deleted, so the store follows the current code rather than its
+ * whole history. The index is rewritten when entries are evicted, the data file only once most of
+ * it is evicted embeddings, and both are replaced by atomic moves.
+ * <p>
+ * A store is opened while a source file is embedded, and holds a file lock until it is closed.
+ * It is meant for the runs over one repository, one after the other.
+ */
+class EmbeddingStore implements Closeable {
+    private static final int MAGIC = 0x454d4244;
+    private static final int HEADER_BYTES = 32;
+    private static final int HASH_BYTES = 32;
+    private static final int SLOT_BYTES = HASH_BYTES + 2 * Integer.BYTES;
+    private static final int INITIAL_SLOTS = 1024;
+    private static final int MAX_SLOTS = 1 << 25;
+
+    // offsets in the header of the index
+    private static final int DIMS = 4;
+    private static final int GENERATION = 8;
+    private static final int SLOTS = 12;
+    private static final int USED = 16;
+    private static final int RECORDS = 20;
+    private static final int EPOCH = 24;
+
+    /**
+     * File locks are held by the whole JVM, so the threads of the JVM take turns before taking one.
+     */
+    private static final Semaphore JVM_LOCK = new Semaphore(1);
+
+    private final Path dir;
+    private final int generation;
+    private final FileChannel lock;
+    private MappedByteBuffer index;
+    private FileChannel data;
+
+    private EmbeddingStore(Path dir, int generation, FileChannel lock) throws IOException {
+        this.dir = dir;
+        this.generation = generation;
+        this.lock = lock;
+        if (!Files.exists(dir.resolve("index"))) {
+            writeIndex(dir.resolve("index"), newIndex(0, 0, INITIAL_SLOTS, 0, 0, 0));
+        }
+        this.index = mapIndex();
+        this.data = FileChannel.open(dataFile(index.getLong(EPOCH)), CREATE, READ, WRITE);
+    }
+
+    static EmbeddingStore open(Path dir, int generation) {
+        JVM_LOCK.acquireUninterruptibly();
+        FileChannel lock = null;
+        try {
+            Files.createDirectories(dir);
+            lock = FileChannel.open(dir.resolve("lock"), CREATE, WRITE);
+            // released when the channel is closed
+            lock.lock();
+            return new EmbeddingStore(dir, generation, lock);
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (lock != null) {
+                    lock.close();
+                }
+            } catch (IOException ignored) {
+                // the failure to open is more telling
+            }
+            JVM_LOCK.release();
+            throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Begin a run, evicting the entries that the latest run did not see.
+     *
+     * @return the generation of the new run, to {@link #open(Path, int)} the store with.
+     */
+    static int beginRun(Path dir) {
+        try (EmbeddingStore store = open(dir, 0)) {
+            return store.evict();
+        }
+    }
+
+    /**
+     * @return the embedding stored for this code, or null if there is none. An embedding that is
+     * found is kept by the next run.
+     */
+    float @Nullable [] get(String code) {
+        byte[] hash = hash(code);
+        int offset = slotOffset(find(hash));
+        if (index.getInt(offset + HASH_BYTES) == 0) {
+            return null;
+        }
+        index.putInt(offset + HASH_BYTES, generation);
+        return readEmbedding(data, index.getInt(offset + HASH_BYTES + Integer.BYTES), index.getInt(DIMS));
+    }
+
+    void put(String code, float[] embedding) {
+        int dims = index.getInt(DIMS);
+        if (dims == 0) {
+            index.putInt(DIMS, embedding.length);
+        } else if (dims != embedding.length) {
+            throw new IllegalArgumentException("The embeddings of " + dir + " have " + dims +
+                                               " dimensions, got " + embedding.length);
+        }
+        byte[] hash = hash(code);
+        int offset = slotOffset(find(hash));
+        if (index.getInt(offset + HASH_BYTES) != 0) {
+            index.putInt(offset + HASH_BYTES, generation);
+            return;
+        }
+        if ((index.getInt(USED) + 1) * 2L > index.getInt(SLOTS)) {
+            // keep the table at most half full, so that probes stay short
+            rewrite(0, false);
+            offset = slotOffset(find(hash));
+        }
+
+        int record = index.getInt(RECORDS);
+        writeEmbedding(data, record, embedding);
+        index.position(offset);
+        index.put(hash);
+        index.position(0);
+        index.putInt(offset + HASH_BYTES, generation);
+        index.putInt(offset + HASH_BYTES + Integer.BYTES, record);
+        index.putInt(RECORDS, record + 1);
+        index.putInt(USED, index.getInt(USED) + 1);
+    }
+
+    int size() {
+        return index.getInt(USED);
+    }
+
+    @Override
+    public void close() {
+        try {
+            index.force();
+            data.close();
+            lock.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            JVM_LOCK.release();
+        }
+    }
+
+    private int evict() {
+        int latest = index.getInt(GENERATION);
+        int live = 0;
+        for (int slot = 0; slot < index.getInt(SLOTS); slot++) {
+            int slotGeneration = index.getInt(slotOffset(slot) + HASH_BYTES);
+            if (slotGeneration != 0 && slotGeneration >= latest) {
+                live++;
+            }
+        }
+        if (live < index.getInt(USED)) {
+            // the embeddings of evicted entries are only dropped once they are most of the data file
+            rewrite(latest, index.getInt(RECORDS) - live > live);
+        }
+        index.putInt(GENERATION, latest + 1);
+        return latest + 1;
+    }
+
+    /**
+     * Replace the index with one that only has the entries seen since {@code minGeneration}, sized
+     * for them to fill at most a quarter of it.
+     *
+     * @param compactData whether to also copy their embeddings to a new data file, dropping the others.
+     */
+    private void rewrite(int minGeneration, boolean compactData) {
+        try {
+            int dims = index.getInt(DIMS);
+            int slots = index.getInt(SLOTS);
+            int live = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                if (index.getInt(slotOffset(slot) + HASH_BYTES) >= Math.max(1, minGeneration)) {
+                    live++;
+                }
+            }
+            int newSlots = INITIAL_SLOTS;
+            while (newSlots < live * 4L) {
+                newSlots <<= 1;
+            }
+            if (newSlots > MAX_SLOTS) {
+                throw new IllegalStateException("The embedding store " + dir + " is limited to " + MAX_SLOTS / 2 + " entries");
+            }
+
+            long epoch = index.getLong(EPOCH) + (compactData ? 1 : 0);
+            FileChannel newData = compactData ? FileChannel.open(dataFile(epoch), CREATE, TRUNCATE_EXISTING, READ, WRITE) : data;
+            ByteBuffer rewritten = newIndex(dims, index.getInt(GENERATION), newSlots, live,
+                    compactData ? live : index.getInt(RECORDS), epoch);
+            int records = 0;
+            byte[] hash = new byte[HASH_BYTES];
+            for (int slot = 0; slot < slots; slot++) {
+                int offset = slotOffset(slot);
+                int slotGeneration = index.getInt(offset + HASH_BYTES);
+                if (slotGeneration < Math.max(1, minGeneration)) {
+                    continue;
+                }
+                int record = index.getInt(offset + HASH_BYTES + Integer.BYTES);
+                if (compactData) {
+                    writeEmbedding(newData, records, readEmbedding(data, record, dims));
+                    record = records++;
+                }
+                index.position(offset);
+                index.get(hash);
+                index.position(0);
+
+                int newSlot = (ByteBuffer.wrap(hash).getInt() & 0x7fffffff) & (newSlots - 1);
+                while (rewritten.getInt(slotOffset(newSlot) + HASH_BYTES) != 0) {
+                    newSlot = (newSlot + 1) & (newSlots - 1);
+                }
+                rewritten.position(slotOffset(newSlot));
+                rewritten.put(hash);
+                rewritten.putInt(slotGeneration);
+                rewritten.putInt(record);
+            }
+            rewritten.position(0);
+
+            if (compactData) {
+                newData.force(true);
+            }
+            // the new index is where the rewrite takes effect, so it is the last file to be moved in place
+            Path tmp = dir.resolve("index.tmp");
+            writeIndex(tmp, rewritten);
+            Files.move(tmp, dir.resolve("index"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            index = mapIndex();
+            if (compactData) {
+                data.close();
+                data = newData;
+                deleteOtherDataFiles(epoch);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void deleteOtherDataFiles(long epoch) throws IOException {
+        try (DirectoryStream<Path> dataFiles = Files.newDirectoryStream(dir, "data-*")) {
+            for (Path dataFile : dataFiles) {
+                if (!dataFile.equals(dataFile(epoch))) {
+                    Files.deleteIfExists(dataFile);
+                }
+            }
+        }
+    }
+
+    private int find(byte[] hash) {
+        int slots = index.getInt(SLOTS);
+        int slot = (ByteBuffer.wrap(hash).getInt() & 0x7fffffff) & (slots - 1);
+        while (true) {
+            int offset = slotOffset(slot);
+            if (index.getInt(offset + HASH_BYTES) == 0 || hashEquals(offset, hash)) {
+                return slot;
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+    }
+
+    private boolean hashEquals(int offset, byte[] hash) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            if (index.get(offset + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private MappedByteBuffer mapIndex() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve("index"), READ, WRITE)) {
+            // the mapping outlives the channel
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (channel.size() < HEADER_BYTES || mapped.getInt(0) != MAGIC ||
+                channel.size() != HEADER_BYTES + (long) mapped.getInt(SLOTS) * SLOT_BYTES) {
+                throw new IllegalStateException(dir.resolve("index") + " is not an embedding store index");
+            }
+            return mapped;
+        }
+    }
+
+    private Path dataFile(long epoch) {
+        return dir.resolve("data-" + epoch);
+    }
+
+    /**
+     * Generation 0 marks an empty slot, which is why generations start at 1.
+     */
+    private static ByteBuffer newIndex(int dims, int generation, int slots, int used, int records, long epoch) {
+        ByteBuffer index = ByteBuffer.allocate(HEADER_BYTES + slots * SLOT_BYTES);
+        index.putInt(0, MAGIC);
+        index.putInt(DIMS, dims);
+        index.putInt(GENERATION, generation);
+        index.putInt(SLOTS, slots);
+        index.putInt(USED, used);
+        index.putInt(RECORDS, records);
+        index.putLong(EPOCH, epoch);
+        return index;
+    }
+
+    private static void writeIndex(Path file, ByteBuffer index) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            ByteBuffer content = index.duplicate();
+            content.position(0);
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+    }
+
+    private static float[] readEmbedding(FileChannel data, int record, int dims) {
+        ByteBuffer bytes = ByteBuffer.allocate(dims * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long position = (long) record * dims * Float.BYTES;
+        try {
+            while (bytes.hasRemaining()) {
+                if (data.read(bytes, position + bytes.position()) < 0) {
+                    throw new EOFException("Truncated embedding at " + position);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytes.flip();
+        float[] embedding = new float[dims];
+        bytes.asFloatBuffer().get(embedding);
+        return embedding;
+    }
+
+    private static void writeEmbedding(FileChannel data, int record, float[] embedding) {
+        ByteBuffer bytes = ByteBuffer.allocate(embedding.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asFloatBuffer().put(embedding);
+        long position = (long) record * embedding.length * Float.BYTES;
+        try {
+            while (bytes.hasRemaining()) {
+                data.write(bytes, position + bytes.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static byte[] hash(String code) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(code.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
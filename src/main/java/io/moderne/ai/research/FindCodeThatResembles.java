@@ -17,10 +17,13 @@ package io.moderne.ai.research;
 
 import io.moderne.ai.AgentGenerativeModelClient;
 import io.moderne.ai.EmbeddingModelClient;
+import io.moderne.ai.PreparedQuery;
 import io.moderne.ai.RelatedModelClient;
 import io.moderne.ai.table.CodeSearch;
 import io.moderne.ai.table.EmbeddingPerformance;
+import io.moderne.ai.table.GenerativeModelMetrics;
 import io.moderne.ai.table.GenerativeModelPerformance;
+import io.moderne.ai.table.GenerativeVerdictCacheStatistics;
 import io.moderne.ai.table.SuggestedMethodPatterns;
 import io.moderne.ai.table.TopKMethodMatcher;
 import lombok.EqualsAndHashCode;
@@ -46,6 +49,13 @@ import static java.util.Objects.requireNonNull;
 @Value
 @EqualsAndHashCode(callSuper = false)
 public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.Accumulator> {
+    /**
+     * The generative model's probability is that of answering "Yes" rather than "No", so a snippet
+     * is related when "Yes" is the more likely answer. A cutoff calibrated on the probability of
+     * "Yes" among every token would not survive changes to the prompt or the grammar.
+     */
+    private static final double GENERATIVE_THRESHOLD = 0.5;
+
     @Option(displayName = "Resembles",
             description = "The text, either a natural language description or a code sample, " +
                           "that you are looking for.",
@@ -59,10 +69,21 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
             example = "5")
     int k;
 
+    @Option(displayName = "Near-duplicate distance",
+            description = "The generative model's verdict on a snippet is always reused for snippets that only differ " +
+                          "in their literals and variable names. When set, it is also reused for snippets whose embeddings " +
+                          "are within this distance of each other.",
+            example = "0.05",
+            required = false)
+    @Nullable
+    Double nearDuplicateDistance;
+
     transient CodeSearch codeSearchTable = new CodeSearch(this);
     transient TopKMethodMatcher topKTable = new TopKMethodMatcher(this);
     transient EmbeddingPerformance embeddingPerformance = new EmbeddingPerformance(this);
     transient GenerativeModelPerformance generativeModelPerformance = new GenerativeModelPerformance(this);
+    transient GenerativeModelMetrics generativeModelMetrics = new GenerativeModelMetrics(this);
+    transient GenerativeVerdictCacheStatistics verdictCacheStatistics = new GenerativeVerdictCacheStatistics(this);
     transient SuggestedMethodPatterns suggestedMethodPatternsTable = new SuggestedMethodPatterns(this);
 
 
@@ -92,8 +113,10 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
         Boolean populatedTopKDataTable = false;
 
         final int k;
+        final PreparedQuery query;
         PriorityQueue<MethodSignatureWithDistance> methodSignaturesQueue = new PriorityQueue<>(Comparator.comparingDouble(MethodSignatureWithDistance::getDistance));
         EmbeddingModelClient embeddingModelClient = EmbeddingModelClient.getInstance();
+        GenerativeVerdictCache verdictCache = new GenerativeVerdictCache();
         private HashSet<String> methodPatternsSet = new HashSet<>();
 
         @NonFinal
@@ -104,7 +127,7 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
         @Nullable
         List<MethodSignatureWithDistance> topMethodSignatureWithDistances;
 
-        public void add(String methodSignature, String methodPattern, String resembles) {
+        public void add(String methodSignature, String methodPattern) {
             if (methodPatternsSet.contains(methodPattern)) {
                 return;
             }
@@ -112,7 +135,7 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
             MethodSignatureWithDistance methodSignatureWithDistance = new MethodSignatureWithDistance(
                     methodSignature,
                     methodPattern,
-                    (float) embeddingModelClient.getDistance(resembles, methodSignature)
+                    (float) embeddingModelClient.getDistance(query, methodSignature)
             );
 
             methodSignaturesQueue.add(methodSignatureWithDistance);
@@ -153,7 +176,8 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
 
     @Override
     public Accumulator getInitialValue(ExecutionContext ctx) {
-        return new Accumulator(k);
+        generativeModelMetrics.startRecording(ctx);
+        return new Accumulator(k, RelatedModelClient.getInstance().prepare(resembles));
     }
 
     @Override
@@ -199,7 +223,7 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
                     String methodPattern = methodPatternBuilder.append(Optional.ofNullable(type.getDeclaringType())
                             .map(Object::toString).orElse("")).append(" ").append(type.getName()).append("(..)").toString();
 
-                    acc.add(methodSignature, methodPattern, resembles);
+                    acc.add(methodSignature, methodPattern);
                 });
 
                 return super.visitCompilationUnit(cu, ctx);
@@ -233,6 +257,38 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
                 getCursor().putMessage("countGenerative", new AtomicInteger());
                 getCursor().putMessage("maxGenerative", new AtomicLong());
                 getCursor().putMessage("histogramGenerative", new GenerativeModelPerformance.Histogram());
+                getCursor().putMessage("countVerdictLookups", new AtomicInteger());
+                getCursor().putMessage("countNormalizedHits", new AtomicInteger());
+                getCursor().putMessage("countNearDuplicateHits", new AtomicInteger());
+
+                // Embed all candidate invocations of this compilation unit in one batch per model
+                List<String> snippets = new ArrayList<>();
+                new JavaIsoVisitor<List<String>>() {
+                    @Override
+                    public J.MethodInvocation visitMethodInvocation(J.MethodInvocation method, List<String> s) {
+                        for (MethodMatcher m : methodMatchers) {
+                            if (m.matches(method)) {
+                                s.add(method.printTrimmed(getCursor()));
+                                break;
+                            }
+                        }
+                        return super.visitMethodInvocation(method, s);
+                    }
+                }.visit(cu, snippets, getCursor().getParentOrThrow());
+                if (!snippets.isEmpty()) {
+                    // kept for this compilation unit, since its batch may not fit in the embedding cache
+                    RelatedModelClient.Prefetched prefetched = RelatedModelClient.getInstance().prefetch(snippets);
+                    getCursor().putMessage("prefetched", prefetched);
+                    for (Duration timing : prefetched.getTimings()) {
+                        requireNonNull(getCursor().<AtomicInteger>getMessage("countEmbedding")).incrementAndGet();
+                        requireNonNull(getCursor().<EmbeddingPerformance.Histogram>getMessage("histogramEmbedding")).add(timing);
+                        AtomicLong max = requireNonNull(getCursor().getMessage("maxEmbedding"));
+                        if (max.get() < timing.toNanos()) {
+                            max.set(timing.toNanos());
+                        }
+                    }
+                }
+
                 try {
                     return super.visitCompilationUnit(cu, ctx);
                 } finally {
@@ -252,6 +308,18 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
                                 requireNonNull(getCursor().<GenerativeModelPerformance.Histogram>getMessage("histogramGenerative")).getBuckets(),
                                 generativeMax));
                     }
+                    int lookups = getCursor().getMessage("countVerdictLookups", new AtomicInteger()).get();
+                    if (lookups > 0) {
+                        int normalizedHits = requireNonNull(getCursor().<AtomicInteger>getMessage("countNormalizedHits")).get();
+                        int nearDuplicateHits = requireNonNull(getCursor().<AtomicInteger>getMessage("countNearDuplicateHits")).get();
+                        verdictCacheStatistics.insertRow(ctx, new GenerativeVerdictCacheStatistics.Row(
+                                ((SourceFile) cu).getSourcePath().toString(),
+                                lookups,
+                                normalizedHits,
+                                nearDuplicateHits,
+                                lookups - normalizedHits - nearDuplicateHits));
+                    }
+                    generativeModelMetrics.insertSamples(ctx);
                 }
             }
 
@@ -285,8 +353,9 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
                     return super.visitMethodInvocation(method, ctx);
                 }
 
+                RelatedModelClient.Prefetched prefetched = getCursor().getNearestMessage("prefetched");
                 RelatedModelClient.Relatedness related = RelatedModelClient.getInstance()
-                        .getRelatedness(resembles, method.printTrimmed(getCursor()));
+                        .getRelatedness(acc.getQuery(), method.printTrimmed(getCursor()), prefetched);
                 for (Duration timing : related.getEmbeddingTimings()) {
                     requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countEmbedding")).incrementAndGet();
                     requireNonNull(getCursor().<EmbeddingPerformance.Histogram>getNearestMessage("histogramEmbedding")).add(timing);
@@ -299,23 +368,45 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
 
                 int resultEmbeddingModels = related.isRelated(); // results from two first models -1, 0, 1
                 boolean calledGenerativeModel = false;
+                boolean cachedGenerativeModel = false;
                 boolean resultGenerativeModel = false;
+                Double probabilityGenerativeModel = null;
                 if (resultEmbeddingModels == 0) {
-                    AgentGenerativeModelClient.TimedRelatedness resultGenerativeModelTimed = AgentGenerativeModelClient.getInstance()
-                            .isRelatedTiming(resembles, method.printTrimmed(getCursor()), 0.413);
-                    resultGenerativeModel = resultGenerativeModelTimed.isRelated();
-                    calledGenerativeModel = true;
-
-                    Duration timing = resultGenerativeModelTimed.getDuration();
-                    requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countGenerative")).incrementAndGet();
-                    requireNonNull(getCursor().<GenerativeModelPerformance.Histogram>getNearestMessage("histogramGenerative")).add(timing);
-                    AtomicLong max = getCursor().getNearestMessage("maxGenerative");
-                    if (requireNonNull(max).get() < timing.toNanos()) {
-                        max.set(timing.toNanos());
+                    String snippet = method.printTrimmed(getCursor());
+                    float[] embedding = null;
+                    if (nearDuplicateDistance != null) {
+                        // the snippet was already embedded by every model of the cascade with its compilation unit
+                        embedding = prefetched == null ? null : prefetched.getEmbedding(EmbeddingModelClient.BGE_MICRO, snippet);
+                        if (embedding == null) {
+                            embedding = EmbeddingModelClient.getInstance()
+                                    .getCachedEmbedding(EmbeddingModelClient.BGE_MICRO, snippet, new ArrayList<>(1));
+                        }
+                    }
+                    requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countVerdictLookups")).incrementAndGet();
+                    GenerativeVerdictCache.Hit hit = acc.getVerdictCache().lookup(snippet, embedding,
+                            nearDuplicateDistance == null ? 0 : nearDuplicateDistance);
+                    if (hit != null) {
+                        probabilityGenerativeModel = hit.getProbability();
+                        resultGenerativeModel = hit.getProbability() >= GENERATIVE_THRESHOLD;
+                        cachedGenerativeModel = true;
+                        requireNonNull(getCursor().<AtomicInteger>getNearestMessage(hit.isNearDuplicate() ?
+                                "countNearDuplicateHits" : "countNormalizedHits")).incrementAndGet();
+                    } else {
+                        AgentGenerativeModelClient.TimedRelatedness resultGenerativeModelTimed = AgentGenerativeModelClient.getInstance()
+                                .isRelatedTiming(resembles, snippet, GENERATIVE_THRESHOLD);
+                        resultGenerativeModel = resultGenerativeModelTimed.isRelated();
+                        probabilityGenerativeModel = resultGenerativeModelTimed.getProbability();
+                        calledGenerativeModel = true;
+                        acc.getVerdictCache().put(snippet, embedding, probabilityGenerativeModel);
+
+                        Duration timing = resultGenerativeModelTimed.getDuration();
+                        requireNonNull(getCursor().<AtomicInteger>getNearestMessage("countGenerative")).incrementAndGet();
+                        requireNonNull(getCursor().<GenerativeModelPerformance.Histogram>getNearestMessage("histogramGenerative")).add(timing);
+                        AtomicLong max = getCursor().getNearestMessage("maxGenerative");
+                        if (requireNonNull(max).get() < timing.toNanos()) {
+                            max.set(timing.toNanos());
+                        }
                     }
-
-
-
                 }
 
                 // Populate data table for debugging model's accuracy
@@ -326,8 +417,12 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
                         method.printTrimmed(getCursor()),
                         resembles,
                         resultEmbeddingModels,
+                        related.getScores().get(0),
+                        related.getScores().get(1),
                         calledGenerativeModel,
-                        resultGenerativeModel
+                        cachedGenerativeModel,
+                        resultGenerativeModel,
+                        probabilityGenerativeModel
                 ));
 
                 if (resultGenerativeModel || resultEmbeddingModels == 1) {
@@ -338,7 +433,7 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
                     ));
                 }
 
-                if (calledGenerativeModel){
+                if (calledGenerativeModel || cachedGenerativeModel) {
                     return resultGenerativeModel ?
                             SearchResult.found(method) :
                             super.visitMethodInvocation(method, ctx);
@@ -350,4 +445,10 @@ public class FindCodeThatResembles extends ScanningRecipe<FindCodeThatResembles.
             }
         });
     }
+
+    @Override
+    public void onComplete(ExecutionContext ctx) {
+        // the samples taken after the last source file was visited
+        generativeModelMetrics.stopRecording(ctx);
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import io.moderne.ai.EmbeddingModelClient;
+import lombok.Value;
+import org.jspecify.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Probabilities given by the generative model to snippets of a recipe run, reused for snippets
+ * that only differ in their literals and variable names, like {@code client.post(urlA)} and
+ * {@code client.post(urlB)}. Optionally, a snippet whose embedding is within a small distance
+ * of a previously judged snippet also reuses its probability.
+ */
+class GenerativeVerdictCache {
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "this", "super", "new", "null", "class", "instanceof", "return", "throw"));
+
+    private final Map<String, Double> byNormalizedSnippet = Collections.synchronizedMap(new LinkedHashMap<String, Double>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    });
+
+    private final Deque<Embedded> byEmbedding = new ArrayDeque<>();
+
+    /**
+     * @param embedding   the snippet embedding, or null to only look up normalized snippets.
+     * @param maxDistance the largest distance between embeddings of near-duplicate snippets.
+     * @return the cached verdict, or null if the generative model has to be called.
+     */
+    public @Nullable Hit lookup(String snippet, float @Nullable [] embedding, double maxDistance) {
+        Double probability = byNormalizedSnippet.get(normalize(snippet));
+        if (probability != null) {
+            return new Hit(probability, false);
+        }
+        if (embedding != null) {
+            synchronized (byEmbedding) {
+                Embedded nearest = null;
+                double nearestDistance = maxDistance;
+                for (Embedded e : byEmbedding) {
+                    double distance = EmbeddingModelClient.dist(embedding, e.getEmbedding());
+                    if (distance <= nearestDistance) {
+                        nearest = e;
+                        nearestDistance = distance;
+                    }
+                }
+                if (nearest != null) {
+                    return new Hit(nearest.getProbability(), true);
+                }
+            }
+        }
+        return null;
+    }
+
+    public void put(String snippet, float @Nullable [] embedding, double probability) {
+        byNormalizedSnippet.put(normalize(snippet), probability);
+        if (embedding != null) {
+            synchronized (byEmbedding) {
+                byEmbedding.addLast(new Embedded(embedding, probability));
+                if (byEmbedding.size() > MAX_ENTRIES) {
+                    byEmbedding.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace literals with placeholders and variable names with {@code v}, dropping insignificant whitespace.
+     * Method names, type names (by convention capitalized) and keywords are kept, since they carry
+     * what the snippet does.
+     */
+    static String normalize(String snippet) {
+        StringBuilder normalized = new StringBuilder(snippet.length());
+        int i = 0;
+        while (i < snippet.length()) {
+            char c = snippet.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < snippet.length() && Character.isWhitespace(snippet.charAt(i))) {
+                    i++;
+                }
+                // whitespace only matters between two words
+                if (normalized.length() > 0 && i < snippet.length() &&
+                    Character.isJavaIdentifierPart(normalized.charAt(normalized.length() - 1)) &&
+                    Character.isJavaIdentifierPart(snippet.charAt(i))) {
+                    normalized.append(' ');
+                }
+            } else if (c == '"' || c == '\'') {
+                i = skipQuoted(snippet, i);
+                normalized.append(c).append('?').append(c);
+            } else if (c >= '0' && c <= '9') {
+                while (i < snippet.length() && (Character.isLetterOrDigit(snippet.charAt(i)) ||
+                                                snippet.charAt(i) == '.' || snippet.charAt(i) == '_')) {
+                    i++;
+                }
+                normalized.append('0');
+            } else if (Character.isJavaIdentifierStart(c)) {
+                int start = i;
+                while (i < snippet.length() && Character.isJavaIdentifierPart(snippet.charAt(i))) {
+                    i++;
+                }
+                String identifier = snippet.substring(start, i);
+                if ("true".equals(identifier) || "false".equals(identifier)) {
+                    normalized.append('0');
+                } else if (Character.isLowerCase(c) && !KEYWORDS.contains(identifier) && !isInvoked(snippet, i)) {
+                    normalized.append('v');
+                } else {
+                    normalized.append(identifier);
+                }
+            } else {
+                normalized.append(c);
+                i++;
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static int skipQuoted(String snippet, int start) {
+        char quote = snippet.charAt(start);
+        int i = start + 1;
+        while (i < snippet.length()) {
+            char c = snippet.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == quote) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isInvoked(String snippet, int identifierEnd) {
+        for (int i = identifierEnd; i < snippet.length(); i++) {
+            char c = snippet.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '(';
+            }
+        }
+        return false;
+    }
+
+    @Value
+    public static class Hit {
+        double probability;
+
+        /**
+         * True when the hit was found by embedding distance rather than by normalized snippet.
+         */
+        boolean nearDuplicate;
+    }
+
+    @Value
+    private static class Embedded {
+        float[] embedding;
+        double probability;
+    }
+}
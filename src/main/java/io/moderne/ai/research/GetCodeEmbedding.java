@@ -19,6 +19,7 @@ import io.moderne.ai.EmbeddingModelClient;
 import io.moderne.ai.table.Embeddings;
 import lombok.EqualsAndHashCode;
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
 import org.openrewrite.ExecutionContext;
 import org.openrewrite.Option;
 import org.openrewrite.Recipe;
@@ -27,9 +28,17 @@ import org.openrewrite.java.JavaIsoVisitor;
 import org.openrewrite.java.tree.J;
 import org.openrewrite.java.tree.JavaSourceFile;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
 @Value
 @EqualsAndHashCode(callSuper = false)
 public class GetCodeEmbedding extends Recipe {
+    private static final int DEFAULT_BATCH_SIZE = 64;
 
     @Option(displayName = "Code snippet type",
             description = "Choose whether you want to get an embedding for the classes or methods.",
@@ -37,6 +46,21 @@ public class GetCodeEmbedding extends Recipe {
             valid = {"methods", "classes"})
     String codeSnippetType;
 
+    @Option(displayName = "Batch size",
+            description = "How many declarations of a source file are sent to the embedding model in one request. Defaults to 64.",
+            example = "64",
+            required = false)
+    @Nullable
+    Integer batchSize;
+
+    @Option(displayName = "Embedding store",
+            description = "A directory where the embeddings of declarations are kept between runs over a repository. " +
+                          "When set, only new or changed declarations are sent to the model, and the embeddings of " +
+                          "declarations that a run no longer sees are evicted by the next one.",
+            example = "/data/embeddings",
+            required = false)
+    @Nullable
+    String embeddingStore;
 
     transient Embeddings embeddings = new Embeddings(this);
 
@@ -53,32 +77,104 @@ public class GetCodeEmbedding extends Recipe {
 
     @Override
     public TreeVisitor<?, ExecutionContext> getVisitor() {
-        if ("methods".equals(codeSnippetType)) {
-            return new JavaIsoVisitor<ExecutionContext>() {
-                @Override
-                public J.MethodDeclaration visitMethodDeclaration(J.MethodDeclaration method, ExecutionContext ctx) {
-                    J.MethodDeclaration md = super.visitMethodDeclaration(method, ctx);
-                    // Get embedding
-                    JavaSourceFile javaSourceFile = getCursor().firstEnclosing(JavaSourceFile.class);
-                    float[] embedding = EmbeddingModelClient.getInstance().getEmbedding(md.printTrimmed(getCursor()));
-                    embeddings.insertRow(ctx, new Embeddings.Row(javaSourceFile.getSourcePath().toString(), md.getSimpleName(), embedding));
-                    return md;
+        boolean methods = "methods".equals(codeSnippetType);
+        int batch = batchSize == null ? DEFAULT_BATCH_SIZE : Math.max(1, batchSize);
+        Path store = embeddingStore == null ? null : Paths.get(embeddingStore).resolve(EmbeddingModelClient.BGE_SMALL);
+        return new JavaIsoVisitor<ExecutionContext>() {
+            @Override
+            public J preVisit(J tree, ExecutionContext ctx) {
+                // every Java, Kotlin or Groovy source file, not only J.CompilationUnit
+                if (tree instanceof JavaSourceFile) {
+                    getCursor().putMessage("declarations", new ArrayList<Declaration>());
+                }
+                return tree;
+            }
+
+            @Override
+            public J postVisit(J tree, ExecutionContext ctx) {
+                if (tree instanceof JavaSourceFile) {
+                    embed(((JavaSourceFile) tree).getSourcePath().toString(),
+                            requireNonNull(getCursor().<List<Declaration>>getMessage("declarations")), ctx);
+                }
+                return tree;
+            }
+
+            private void embed(String sourcePath, List<Declaration> declarations, ExecutionContext ctx) {
+                float[][] embedded = new float[declarations.size()][];
+                boolean[] reused = new boolean[declarations.size()];
+                boolean[] truncated = new boolean[declarations.size()];
+                List<Integer> missing = new ArrayList<>(declarations.size());
+                // the run evicts what the previous run did not see the first time it opens the store
+                int generation = store == null ? 0 :
+                        ctx.computeMessageIfAbsent("moderne.ai.embeddingStore.generation." + store, k -> EmbeddingStore.beginRun(store));
+                if (store != null) {
+                    try (EmbeddingStore stored = EmbeddingStore.open(store, generation)) {
+                        for (int i = 0; i < declarations.size(); i++) {
+                            embedded[i] = stored.get(declarations.get(i).getText());
+                            reused[i] = embedded[i] != null;
+                        }
+                    }
+                }
+                for (int i = 0; i < declarations.size(); i++) {
+                    if (!reused[i]) {
+                        missing.add(i);
+                    }
                 }
-            };
-        } else {
-            return new JavaIsoVisitor<ExecutionContext>() {
-                @Override
-                public J.ClassDeclaration visitClassDeclaration(J.ClassDeclaration clazz, ExecutionContext ctx) {
-                    J.ClassDeclaration cd = getCursor().firstEnclosing(J.ClassDeclaration.class);
-                    // Get embedding
-                    JavaSourceFile javaSourceFile = getCursor().firstEnclosing(JavaSourceFile.class);
-                    float[] embedding = EmbeddingModelClient.getInstance().getEmbedding(cd.printTrimmed(getCursor()));
-                    embeddings.insertRow(ctx, new Embeddings.Row(javaSourceFile.getSourcePath().toString(), cd.getSimpleName(), embedding));
-                    return cd;
+
+                // embed in batches rather than one request per declaration, keeping the order of the source
+                for (int from = 0; from < missing.size(); from += batch) {
+                    List<Integer> chunk = missing.subList(from, Math.min(from + batch, missing.size()));
+                    List<String> texts = new ArrayList<>(chunk.size());
+                    for (int i : chunk) {
+                        texts.add(declarations.get(i).getText());
+                    }
+                    List<EmbeddingModelClient.Embedding> batchEmbeddings = EmbeddingModelClient.getInstance().embed(EmbeddingModelClient.BGE_SMALL, texts);
+                    for (int j = 0; j < chunk.size(); j++) {
+                        embedded[chunk.get(j)] = batchEmbeddings.get(j).getVector();
+                        truncated[chunk.get(j)] = batchEmbeddings.get(j).isTruncated();
+                    }
+                }
+                if (store != null && !missing.isEmpty()) {
+                    // the store is not held while the model is called
+                    try (EmbeddingStore stored = EmbeddingStore.open(store, generation)) {
+                        for (int i : missing) {
+                            stored.put(declarations.get(i).getText(), embedded[i]);
+                        }
+                    }
+                }
+
+                for (int i = 0; i < declarations.size(); i++) {
+                    embeddings.insertRow(ctx, new Embeddings.Row(sourcePath, declarations.get(i).getName(), embedded[i], reused[i],
+                            reused[i] ? null : truncated[i]));
                 }
-            };
-        }
+            }
 
+            @Override
+            public J.MethodDeclaration visitMethodDeclaration(J.MethodDeclaration method, ExecutionContext ctx) {
+                J.MethodDeclaration md = super.visitMethodDeclaration(method, ctx);
+                if (methods) {
+                    requireNonNull(getCursor().<List<Declaration>>getNearestMessage("declarations"))
+                            .add(new Declaration(md.getSimpleName(), md.printTrimmed(getCursor())));
+                }
+                return md;
+            }
+
+            @Override
+            public J.ClassDeclaration visitClassDeclaration(J.ClassDeclaration classDecl, ExecutionContext ctx) {
+                if (methods) {
+                    return super.visitClassDeclaration(classDecl, ctx);
+                }
+                // nested classes are embedded as part of the class that declares them
+                requireNonNull(getCursor().<List<Declaration>>getNearestMessage("declarations"))
+                        .add(new Declaration(classDecl.getSimpleName(), classDecl.printTrimmed(getCursor())));
+                return classDecl;
+            }
+        };
+    }
 
+    @Value
+    private static class Declaration {
+        String name;
+        String text;
     }
 }
@@ -18,6 +18,7 @@ package io.moderne.ai.research;
 import io.moderne.ai.AgentGenerativeModelClient;
 import io.moderne.ai.ClusteringClient;
 import io.moderne.ai.EmbeddingModelClient;
+import io.moderne.ai.table.GenerativeModelMetrics;
 import io.moderne.ai.table.Recommendations;
 import lombok.EqualsAndHashCode;
 import lombok.Value;
@@ -25,16 +26,21 @@ import org.jspecify.annotations.Nullable;
 import org.openrewrite.ExecutionContext;
 import org.openrewrite.Option;
 import org.openrewrite.ScanningRecipe;
+import org.openrewrite.SourceFile;
 import org.openrewrite.TreeVisitor;
 import org.openrewrite.java.JavaIsoVisitor;
 import org.openrewrite.java.tree.J;
 import org.openrewrite.java.tree.JavaSourceFile;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+import static java.util.Objects.requireNonNull;
+
 
 @Value
 @EqualsAndHashCode(callSuper = false)
@@ -51,8 +57,42 @@ public class GetRecommendations extends ScanningRecipe<GetRecommendations.Accumu
             required = false)
     int numberOfCenters;
 
+    @Option(displayName = "maximum number of recommendations",
+            description = "Stream the recommendations of each sampled method and stop generating " +
+                          "once this many recommendations are complete. By default, the whole completion is awaited.",
+            example = "3",
+            required = false)
+    @Nullable
+    Integer maxRecommendations;
+
+    @Option(displayName = "sampling memory budget",
+            description = "The memory in megabytes that the methods sampled for clustering may use. Once it is reached, " +
+                          "methods are kept by reservoir sampling. By default, every method of the repository is clustered.",
+            example = "256",
+            required = false)
+    @Nullable
+    Integer samplingMemoryBudget;
+
+    @Option(displayName = "generation parallelism",
+            description = "How many sampled methods are sent to the generative model at the same time, " +
+                          "as soon as sampling is done. The model server is started with a slot for each, " +
+                          "so that they are generated together. Defaults to 4.",
+            example = "4",
+            required = false)
+    @Nullable
+    Integer parallelism;
+
+    @Option(displayName = "centroid store",
+            description = "A JSON file of centroids shared by the runs of this recipe over many repositories. Each run " +
+                          "updates the centroids with its methods and samples the methods closest to them, instead of " +
+                          "clustering from scratch, and reuses the recommendations already generated for a centroid.",
+            example = "/data/centroids.json",
+            required = false)
+    @Nullable
+    String centroidStore;
+
     transient Recommendations recommendationsTable = new Recommendations(this);
-    private static final Random random = new Random(13);
+    transient GenerativeModelMetrics generativeModelMetrics = new GenerativeModelMetrics(this);
 
     @Override
     public String getDisplayName() {
@@ -66,45 +106,144 @@ public class GetRecommendations extends ScanningRecipe<GetRecommendations.Accumu
     }
 
     @Value
-    public class Method {
-        String method;
-        String name;
-        String file;
+    static class Generated {
+        AgentGenerativeModelClient.GeneratedRecommendations recommendations;
+        double elapsedTime;
+
+        /**
+         * The centroid whose stored recommendations were reused, or null if they were generated for this method.
+         */
+        @Nullable
+        Integer reusedFromCentroid;
     }
 
     public class Accumulator {
-        List<Method> methods = new ArrayList<>();
-        List<float[]> embeddings = new ArrayList<>();
+        MethodSampler sampler = new MethodSampler(
+                samplingMemoryBudget == null ? Long.MAX_VALUE : samplingMemoryBudget * 1024L * 1024L,
+                method -> EmbeddingModelClient.getInstance().getEmbedding(method));
+
+        /**
+         * The methods drawn when sampling randomly rather than by clusters, which are few enough to be kept as text.
+         */
+        Map<MethodSampler.MethodRef, String> randomSample = new LinkedHashMap<>();
+        Random random = new Random(13);
 
         @Nullable
         int[] centers;
 
         public int[] getCenters(int numberOfCenters) {
             if (this.centers == null) {
-                this.centers = ClusteringClient.getInstance().getCenters(this.embeddings, numberOfCenters);
+                this.centers = ClusteringClient.getInstance().getCenters(sampler.getEmbeddings(), numberOfCenters);
             }
             return this.centers;
         }
 
-        public Method[] getMethodsToSample(int numberOfCenters) {
-            int[] centersIndex = getCenters(numberOfCenters);
-            Method[] methodsToSample = new Method[centersIndex.length];
-            for (int i = 0; i < getCenters(numberOfCenters).length; i++) {
-                methodsToSample[i] = this.methods.get(centersIndex[i]);
+        @Nullable
+        SampleIndex sampleIndex;
+
+        @Nullable
+        Map<MethodSampler.MethodRef, CompletableFuture<Generated>> generations;
+
+        public void addMethodToSample(String method, String methodName, String file) {
+            if (Boolean.TRUE.equals(randomSampling)) {
+                if (random.nextInt(200) <= 1) {
+                    randomSample.put(new MethodSampler.MethodRef(file, methodName, MethodSampler.hash(method)), method);
+                }
+            } else {
+                sampler.offer(file, methodName, method);
             }
-            return methodsToSample;
+        }
 
+        /**
+         * Index the sampled methods and send them all to the generative model, at most
+         * {@link #parallelism} at a time, so that the visitor only has to collect the results.
+         */
+        synchronized void dispatchGenerations(int numberOfCenters) {
+            if (generations != null) {
+                return;
+            }
+            Map<MethodSampler.MethodRef, String> methodsToSample = new LinkedHashMap<>(randomSample);
+            Map<MethodSampler.MethodRef, CentroidStore.Sample> centroidSamples = new HashMap<>();
+            CentroidStore store = centroidStore == null ? null : new CentroidStore(Paths.get(centroidStore));
+            try {
+                if (Boolean.TRUE.equals(randomSampling)) {
+                    // sampled by the scanner
+                } else if (store != null) {
+                    for (CentroidStore.Sample sample : store.sample(sampler.getEmbeddings(), numberOfCenters,
+                            embeddings -> ClusteringClient.getInstance().getCenters(embeddings, numberOfCenters))) {
+                        MethodSampler.MethodRef method = sampler.getMethods().get(sample.getEmbedding());
+                        methodsToSample.put(method, sampler.getText(sample.getEmbedding()));
+                        centroidSamples.put(method, sample);
+                    }
+                } else {
+                    for (int center : getCenters(numberOfCenters)) {
+                        methodsToSample.put(sampler.getMethods().get(center), sampler.getText(center));
+                    }
+                }
+            } finally {
+                // the centers are chosen and their texts are in methodsToSample, so neither the
+                // embeddings nor the other texts are read again
+                sampler.close();
+            }
+            sampleIndex = SampleIndex.of(methodsToSample.keySet());
+
+            generations = new HashMap<>();
+            if (methodsToSample.isEmpty()) {
+                return;
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(generationParallelism(), r -> {
+                Thread thread = new Thread(r, "get-recommendations");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (Map.Entry<MethodSampler.MethodRef, String> method : methodsToSample.entrySet()) {
+                CentroidStore.Sample sample = centroidSamples.get(method.getKey());
+                if (sample != null && sample.getRecommendations() != null) {
+                    generations.put(method.getKey(), CompletableFuture.completedFuture(new Generated(
+                            new AgentGenerativeModelClient.GeneratedRecommendations(sample.getRecommendations(), 0, 0), 0,
+                            sample.getCentroid())));
+                    continue;
+                }
+                CompletableFuture<Generated> generation = CompletableFuture.supplyAsync(() -> recommend(method.getValue()), executor);
+                if (sample != null) {
+                    generation = generation.thenApply(generated -> {
+                        requireNonNull(store).putRecommendations(sample.getCentroid(), generated.getRecommendations().getRecommendations());
+                        return generated;
+                    });
+                }
+                generations.put(method.getKey(), generation);
+            }
+            // the submitted generations still run, and the threads end with them
+            executor.shutdown();
         }
 
-        public void addMethodToSample(String method, String methodName, String file) {
-            this.methods.add(new Method(method, methodName, file));
-            this.embeddings.add(EmbeddingModelClient.getInstance().getEmbedding(method));
+        SampleIndex getSampleIndex(int numberOfCenters) {
+            dispatchGenerations(numberOfCenters);
+            return requireNonNull(sampleIndex);
+        }
+
+        Generated getGenerated(MethodSampler.MethodRef method) {
+            return requireNonNull(requireNonNull(generations).get(method)).join();
         }
+    }
+
+    private int generationParallelism() {
+        return parallelism == null ? 4 : Math.max(1, parallelism);
+    }
 
+    private Generated recommend(String method) {
+        long time = System.nanoTime();
+        // with a server slot for each generation running at the same time
+        AgentGenerativeModelClient client = AgentGenerativeModelClient.getInstance(generationParallelism());
+        AgentGenerativeModelClient.GeneratedRecommendations generated = maxRecommendations == null ?
+                client.getRecommendations(method) :
+                client.getRecommendations(method, maxRecommendations);
+        return new Generated(generated, (System.nanoTime() - time) / 1e9, null);
     }
 
     @Override
     public Accumulator getInitialValue(ExecutionContext ctx) {
+        generativeModelMetrics.startRecording(ctx);
         return new Accumulator();
     }
 
@@ -123,52 +262,64 @@ public class GetRecommendations extends ScanningRecipe<GetRecommendations.Accumu
         };
     }
 
+    @Override
+    public Collection<? extends SourceFile> generate(Accumulator acc, ExecutionContext ctx) {
+        acc.dispatchGenerations(numberOfCenters);
+        generativeModelMetrics.insertSamples(ctx);
+        return Collections.emptyList();
+    }
 
     @Override
     public TreeVisitor<?, ExecutionContext> getVisitor(Accumulator acc) {
 
         return new JavaIsoVisitor<ExecutionContext>() {
+            @Override
+            public J.CompilationUnit visitCompilationUnit(J.CompilationUnit cu, ExecutionContext ctx) {
+                try {
+                    return super.visitCompilationUnit(cu, ctx);
+                } finally {
+                    generativeModelMetrics.insertSamples(ctx);
+                }
+            }
+
             @Override
             public J.MethodDeclaration visitMethodDeclaration(J.MethodDeclaration method, ExecutionContext ctx) {
                 J.MethodDeclaration md = super.visitMethodDeclaration(method, ctx);
-                boolean isMethodToSample = false;
                 JavaSourceFile javaSourceFile = getCursor().firstEnclosing(JavaSourceFile.class);
                 String source = javaSourceFile.getSourcePath().toString();
-                boolean randomSampling = getRandomSampling() != null ? getRandomSampling() : false;
-                if (randomSampling) {
-                    isMethodToSample = random.nextInt(200) <= 1;
-                } else {
-                    for (Method methodToSample : acc.getMethodsToSample(numberOfCenters)) {
-                        if (methodToSample.file.equals(source) &&
-                            methodToSample.name.equals(md.getSimpleName()) &&
-                            methodToSample.method.equals(md.printTrimmed(getCursor()))) {
-                            isMethodToSample = true;
-                            break;
-                        }
-                    }
-
+                SampleIndex sampleIndex = acc.getSampleIndex(numberOfCenters);
+                if (!sampleIndex.mayContain(source, md.getSimpleName())) {
+                    return md;
                 }
-                if (isMethodToSample) { // samples based on the results from running GetCodeEmbedding and clustering
-                    long time = System.nanoTime();
-                    // Get recommendations
-                    List<String> recommendations;
-                    recommendations = AgentGenerativeModelClient.getInstance().getRecommendations(md.printTrimmed(getCursor()));
+                MethodSampler.MethodRef ref = new MethodSampler.MethodRef(source, md.getSimpleName(),
+                        MethodSampler.hash(md.printTrimmed(getCursor())));
+                if (sampleIndex.contains(ref.getFile(), ref.getName(), ref.getHash())) {
+                    // the recommendations were requested once sampling was done
+                    Generated generated = acc.getGenerated(ref);
+                    List<String> recommendations = generated.getRecommendations().getRecommendations();
 
                     List<String> recommendationsQuoted = recommendations.stream()
                             .map(element -> "\"" + element + "\"")
                             .collect(Collectors.toList());
                     String recommendationsAsString = "[" + String.join(", ", recommendationsQuoted) + "]";
 
-                    int tokenSize = (int) ((md.printTrimmed(getCursor())).length() / 3.5 + recommendations.toString().length() / 3.5);
-                    double elapsedTime = (System.nanoTime() - time) / 1e9;
+                    int tokenSize = generated.getRecommendations().getPromptTokens() +
+                                    generated.getRecommendations().getGeneratedTokens();
 
                     recommendationsTable.insertRow(ctx, new Recommendations.Row(md.getSimpleName(),
-                            elapsedTime,
+                            generated.getElapsedTime(),
                             tokenSize,
-                            recommendationsAsString));
+                            recommendationsAsString,
+                            generated.getReusedFromCentroid()));
                 }
                 return md;
             }
         };
     }
+
+    @Override
+    public void onComplete(ExecutionContext ctx) {
+        // the samples taken after the last source file was visited
+        generativeModelMetrics.stopRecording(ctx);
+    }
 }
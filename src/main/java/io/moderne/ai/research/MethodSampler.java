@@ -0,0 +1,212 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import io.moderne.ai.EmbeddingMatrix;
+import lombok.Value;
+import org.jspecify.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A uniform sample of the method declarations of a repository, with their embeddings, whose memory
+ * is bounded by a budget. Methods are kept by reference rather than by their text, and once the
+ * budget is reached the sample is maintained by reservoir sampling, so a method is only embedded
+ * when it enters the sample. The text of sampled methods is spilled to a temporary file, to be
+ * read back for the few methods that are eventually chosen. Closing the sampler deletes the texts
+ * and releases the embeddings.
+ */
+class MethodSampler implements Closeable {
+    /**
+     * A generous estimate of the memory of a {@link MethodRef} and of the list slots holding it.
+     * The embeddings themselves are off-heap, but count in the budget too.
+     */
+    private static final int BYTES_PER_REFERENCE = 256;
+
+    private final long budgetBytes;
+    private final Function<String, float[]> embed;
+    private final Random random = new Random(13);
+    private final List<MethodRef> methods = new ArrayList<>();
+    private final EmbeddingMatrix embeddings = new EmbeddingMatrix();
+    private final List<Long> textOffsets = new ArrayList<>();
+    private long seen;
+
+    @Nullable
+    private FileChannel texts;
+
+    /**
+     * How many methods fit in the budget, known once the size of an embedding is.
+     */
+    private int capacity = Integer.MAX_VALUE;
+
+    /**
+     * @param budgetBytes the memory of the sample, or {@link Long#MAX_VALUE} to keep every method.
+     */
+    MethodSampler(long budgetBytes, Function<String, float[]> embed) {
+        this.budgetBytes = budgetBytes;
+        this.embed = embed;
+    }
+
+    void offer(String file, String name, String method) {
+        seen++;
+        int slot = methods.size();
+        if (slot >= capacity) {
+            // algorithm R: the method replaces a random one with probability capacity / seen
+            long candidate = (long) (random.nextDouble() * seen);
+            if (candidate >= capacity) {
+                return;
+            }
+            slot = (int) candidate;
+        }
+
+        float[] embedding = embed.apply(method);
+        if (methods.isEmpty() && budgetBytes != Long.MAX_VALUE) {
+            capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                    budgetBytes / ((long) embedding.length * Float.BYTES + BYTES_PER_REFERENCE)));
+        }
+        MethodRef ref = new MethodRef(file, name, hash(method));
+        long textOffset = writeText(method);
+        if (slot == methods.size()) {
+            methods.add(ref);
+            embeddings.append(embedding);
+            textOffsets.add(textOffset);
+        } else {
+            methods.set(slot, ref);
+            embeddings.set(slot, embedding);
+            textOffsets.set(slot, textOffset);
+        }
+    }
+
+    /**
+     * @return the text of the method at this index of {@link #getMethods()}.
+     */
+    String getText(int index) {
+        if (texts == null) {
+            throw new IllegalStateException("The texts of the sampled methods were deleted when the sampler was closed");
+        }
+        long offset = textOffsets.get(index);
+        try {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            readFully(length, offset);
+            ByteBuffer text = ByteBuffer.allocate(length.getInt(0));
+            readFully(text, offset + Integer.BYTES);
+            return new String(text.array(), UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long writeText(String method) {
+        try {
+            if (texts == null) {
+                // the file is gone as soon as the channel is closed, or the JVM exits
+                texts = FileChannel.open(Files.createTempFile("methods", ".txt"),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            long offset = texts.size();
+            byte[] bytes = method.getBytes(UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+            record.flip();
+            long position = offset;
+            while (record.hasRemaining()) {
+                position += texts.write(record, position);
+            }
+            return offset;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (requireNonNull(texts).read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated method text at " + position);
+            }
+        }
+    }
+
+    List<MethodRef> getMethods() {
+        return methods;
+    }
+
+    EmbeddingMatrix getEmbeddings() {
+        return embeddings;
+    }
+
+    /**
+     * @return how many methods were offered, sampled or not.
+     */
+    long getSeen() {
+        return seen;
+    }
+
+    /**
+     * Release the embeddings and delete the texts of the sampled methods, once the methods to keep
+     * are chosen. Only {@link #getMethods()} remains usable.
+     */
+    @Override
+    public void close() {
+        embeddings.close();
+        if (texts != null) {
+            try {
+                texts.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            texts = null;
+        }
+    }
+
+    static String hash(String method) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(method.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Value
+    static class MethodRef {
+        String file;
+        String name;
+
+        /**
+         * The SHA-256 of the trimmed method declaration.
+         */
+        String hash;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import java.util.*;
+
+/**
+ * The methods chosen for recommendations, indexed by file and name so that a method declaration
+ * only has to be printed and hashed when a sampled method has the same file and name.
+ */
+final class SampleIndex {
+    private final Map<String, Map<String, Set<String>>> hashesByFileAndName;
+    private final int size;
+
+    private SampleIndex(Map<String, Map<String, Set<String>>> hashesByFileAndName, int size) {
+        this.hashesByFileAndName = hashesByFileAndName;
+        this.size = size;
+    }
+
+    static SampleIndex of(Collection<MethodSampler.MethodRef> methods) {
+        Map<String, Map<String, Set<String>>> index = new HashMap<>();
+        Set<MethodSampler.MethodRef> distinct = new HashSet<>(methods);
+        for (MethodSampler.MethodRef method : distinct) {
+            index.computeIfAbsent(method.getFile(), f -> new HashMap<>())
+                    .computeIfAbsent(method.getName(), n -> new HashSet<>())
+                    .add(method.getHash());
+        }
+        for (Map.Entry<String, Map<String, Set<String>>> file : index.entrySet()) {
+            file.getValue().replaceAll((name, hashes) -> Collections.unmodifiableSet(hashes));
+            file.setValue(Collections.unmodifiableMap(file.getValue()));
+        }
+        return new SampleIndex(Collections.unmodifiableMap(index), distinct.size());
+    }
+
+    /**
+     * @return true if a sampled method has this file and name, in which case the declaration has to
+     * be hashed to tell whether it is that method.
+     */
+    boolean mayContain(String file, String name) {
+        return hashesByFileAndName.getOrDefault(file, Collections.emptyMap()).containsKey(name);
+    }
+
+    boolean contains(String file, String name, String hash) {
+        return hashesByFileAndName.getOrDefault(file, Collections.emptyMap())
+                .getOrDefault(name, Collections.emptySet())
+                .contains(hash);
+    }
+
+    int size() {
+        return size;
+    }
+}
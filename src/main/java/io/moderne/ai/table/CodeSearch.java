@@ -16,6 +16,7 @@
 package io.moderne.ai.table;
 
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
 import org.openrewrite.Column;
 import org.openrewrite.DataTable;
 import org.openrewrite.Recipe;
@@ -48,12 +49,33 @@ public class CodeSearch extends DataTable<CodeSearch.Row> {
                               " where -1 means negative match, 0 means unsure, and 1 means positive match.")
         int resultEmbedding;
 
+        @Column(displayName = "Score of first embedding model",
+                description = "Distance between the query and the method invocation according to the first embedding model, " +
+                              "where lower means more related.")
+        double firstEmbeddingScore;
+
+        @Column(displayName = "Score of second embedding model",
+                description = "Score between the query and the method invocation according to the second embedding model, " +
+                              "where lower means more related. Empty if the first model was confident.")
+        @Nullable
+        Double secondEmbeddingScore;
+
         @Column(displayName = "Called second model",
                 description = "True if the generative model was used.")
         boolean calledGenerative;
 
+        @Column(displayName = "Reused second model verdict",
+                description = "True if the generative model's verdict was reused from a near-duplicate method invocation.")
+        boolean cachedGenerative;
+
         @Column(displayName = "Result of second model",
                 description = "Second generative model's result.")
         boolean resultGenerative;
+
+        @Column(displayName = "Probability of second model",
+                description = "Probability the generative model gave to answering that the method invocation matches the query, rather than not. " +
+                              "Empty if the generative model was not used.")
+        @Nullable
+        Double probabilityGenerative;
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.table;
+
+import lombok.Value;
+import org.openrewrite.Column;
+import org.openrewrite.DataTable;
+import org.openrewrite.Recipe;
+
+public class CommentRepairStatistics extends DataTable<CommentRepairStatistics.Row> {
+
+    public CommentRepairStatistics(Recipe recipe) {
+        super(recipe,
+                "Comment repair statistics",
+                "How many comments had their language detected before being repaired, and how many were skipped because they have no mis-encoded character.");
+    }
+
+    @Value
+    public static class Row {
+        @Column(displayName = "Source file",
+                description = "The source file that the comments occurred in.")
+        String sourceFile;
+
+        @Column(displayName = "Comments",
+                description = "The count of non-empty comments, where a Javadoc counts as a single comment.")
+        int comments;
+
+        @Column(displayName = "Skipped comments",
+                description = "The count of comments without '?' or '�', for which the language detection was avoided.")
+        int skipped;
+
+        @Column(displayName = "Language detections",
+                description = "The count of comments whose language was detected.")
+        int languageDetections;
+
+        @Column(displayName = "Fixed comments",
+                description = "The count of comments that were changed by the spellchecker.")
+        int fixed;
+    }
+}
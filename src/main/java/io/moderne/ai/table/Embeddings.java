@@ -16,6 +16,7 @@
 package io.moderne.ai.table;
 
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
 import org.openrewrite.Column;
 import org.openrewrite.DataTable;
 import org.openrewrite.Recipe;
@@ -42,5 +43,15 @@ public class Embeddings extends DataTable<Embeddings.Row> {
         @Column(displayName = "Embedding",
                 description = "The embedding for the code snippet")
         float[] embedding;
+
+        @Column(displayName = "Reused",
+                description = "Whether the embedding was reused from the embedding store, rather than computed by the model")
+        boolean reused;
+
+        @Column(displayName = "Truncated",
+                description = "Whether the code snippet was cut to the token limit of the model before being embedded. " +
+                              "Empty when the embedding was reused.")
+        @Nullable
+        Boolean truncated;
     }
 }
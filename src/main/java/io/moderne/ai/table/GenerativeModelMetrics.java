@@ -0,0 +1,108 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.table;
+
+import io.moderne.ai.LlamaServerMetrics;
+import lombok.Value;
+import org.openrewrite.Column;
+import org.openrewrite.DataTable;
+import org.openrewrite.ExecutionContext;
+import org.openrewrite.Recipe;
+
+public class GenerativeModelMetrics extends DataTable<GenerativeModelMetrics.Row> {
+
+    public GenerativeModelMetrics(Recipe recipe) {
+        super(recipe,
+                "Generative model metrics",
+                "Time series of the metrics reported by the generative model servers during the run.");
+    }
+
+    /**
+     * Start recording the metrics for this recipe run, if it is not recording yet.
+     */
+    public void startRecording(ExecutionContext ctx) {
+        recording(ctx);
+    }
+
+    /**
+     * Insert the samples recorded for this recipe run since the last call.
+     */
+    public void insertSamples(ExecutionContext ctx) {
+        for (LlamaServerMetrics.Sample sample : recording(ctx).drain()) {
+            insertRow(ctx, new Row(sample.getTimestamp(),
+                    sample.getPort(),
+                    sample.getPromptTokensPerSecond(),
+                    sample.getPredictedTokensPerSecond(),
+                    sample.getKvCacheUsageRatio(),
+                    sample.getRequestsProcessing(),
+                    sample.getRequestsDeferred()));
+        }
+    }
+
+    /**
+     * Insert the last samples of this recipe run, and stop recording.
+     */
+    public void stopRecording(ExecutionContext ctx) {
+        LlamaServerMetrics.Recording recording = ctx.getMessage(recordingKey());
+        if (recording != null) {
+            recording.close();
+            insertSamples(ctx);
+            ctx.pollMessage(recordingKey());
+        }
+    }
+
+    private LlamaServerMetrics.Recording recording(ExecutionContext ctx) {
+        return ctx.computeMessageIfAbsent(recordingKey(), k -> LlamaServerMetrics.record());
+    }
+
+    /**
+     * The recording belongs to the recipe that owns this table, and lasts as long as the run.
+     */
+    private String recordingKey() {
+        return "io.moderne.ai.generativeModelMetrics." + System.identityHashCode(this);
+    }
+
+    @Value
+    public static class Row {
+        @Column(displayName = "Timestamp",
+                description = "When the metrics were scraped, in ISO-8601 format.")
+        String timestamp;
+
+        @Column(displayName = "Server port",
+                description = "The port of the server replica that reported the metrics.")
+        int port;
+
+        @Column(displayName = "Prompt tokens per second",
+                description = "Average prompt evaluation throughput of the server.")
+        double promptTokensPerSecond;
+
+        @Column(displayName = "Generated tokens per second",
+                description = "Average generation throughput of the server.")
+        double predictedTokensPerSecond;
+
+        @Column(displayName = "KV cache usage",
+                description = "Fraction of the KV cache in use, between 0 and 1.")
+        double kvCacheUsageRatio;
+
+        @Column(displayName = "Slots busy",
+                description = "Number of requests being processed.")
+        int requestsProcessing;
+
+        @Column(displayName = "Requests deferred",
+                description = "Number of requests waiting for a free slot.")
+        int requestsDeferred;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.table;
+
+import lombok.Value;
+import org.openrewrite.Column;
+import org.openrewrite.DataTable;
+import org.openrewrite.Recipe;
+
+public class GenerativeVerdictCacheStatistics extends DataTable<GenerativeVerdictCacheStatistics.Row> {
+
+    public GenerativeVerdictCacheStatistics(Recipe recipe) {
+        super(recipe,
+                "Generative verdict cache statistics",
+                "How often the verdict of the generative model was reused for near-duplicate snippets.");
+    }
+
+    @Value
+    public static class Row {
+        @Column(displayName = "Source file",
+                description = "The source file that the method calls occurred in.")
+        String sourceFile;
+
+        @Column(displayName = "Lookups",
+                description = "The count of snippets that needed a verdict of the generative model.")
+        int lookups;
+
+        @Column(displayName = "Normalized hits",
+                description = "The count of snippets that matched an earlier snippet once literals and variable names are abstracted.")
+        int normalizedHits;
+
+        @Column(displayName = "Near-duplicate hits",
+                description = "The count of snippets whose embedding was close enough to the embedding of an earlier snippet.")
+        int nearDuplicateHits;
+
+        @Column(displayName = "Misses",
+                description = "The count of snippets for which the generative model was called.")
+        int misses;
+    }
+}
@@ -16,6 +16,7 @@
 package io.moderne.ai.table;
 
 import lombok.Value;
+import org.jspecify.annotations.Nullable;
 import org.openrewrite.Column;
 import org.openrewrite.DataTable;
 import org.openrewrite.Recipe;
@@ -40,13 +41,18 @@ public class Recommendations extends DataTable<Recommendations.Row> {
         double latency;
 
         @Column(displayName = "Token size",
-                description = "Estimated token size for input and output")
+                description = "Number of prompt and generated tokens, as counted by the model server. When an older server " +
+                              "stops streaming early, the prompt tokens are counted by the client and may be overestimated.")
         int tokenSize;
 
         @Column(displayName = "Recommendation",
                 description = "The recommendations based on the method")
         String Recommendations;
 
-
+        @Column(displayName = "Reused from centroid",
+                description = "The centroid of the centroid store whose recommendations, generated for a method of an earlier " +
+                              "repository, were reused for this method. Empty if they were generated for this method.")
+        @Nullable
+        Integer reusedFromCentroid;
     }
 }
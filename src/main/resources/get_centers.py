@@ -13,37 +13,32 @@
 # See the License for the specific language governing permissions and
 # limitations under the License.
 #
-from transformers import AutoModel, AutoTokenizer, logging # 4.29.2
 import gradio as gr # 3.23.0
-logging.set_verbosity_error()
 from sklearn.cluster import KMeans
 import numpy as np
-import pandas as pd
 import json
 from sklearn.metrics import pairwise_distances_argmin_min
 
-def string_to_float_array(str, delimiter=";"):
-    return [float(f) for f in str.split(delimiter)]
 
+def get_centers(header):
+    # the embeddings are a float32 little-endian row-major matrix in the file named by the header
+    header = json.loads(header)
+    embeddings = np.memmap(header["path"], dtype="<f4", mode="r", shape=(header["rows"], header["dims"]))
+    _, first_rows = np.unique(embeddings, axis=0, return_index=True)
+    first_rows = np.sort(first_rows)
+    embds = np.asarray(embeddings[first_rows])
 
-def get_centers(embeddings, number_of_centers):
-    number_of_centers = int(number_of_centers)
-    embeddings = json.loads(embeddings)
-    df = pd.DataFrame({'embedding': [embedding for embedding in embeddings]})
-    df.drop_duplicates("embedding", inplace=True)
-    embds = np.array(list(df["embedding"]))
-
-    k = number_of_centers
+    k = int(header["k"])
     if k==-1:
-        k = max(10, int(len(df)/200))
+        k = max(10, int(len(embds)/200))
 
-    if k > len(df):
-        k = len(df)
+    if k > len(embds):
+        k = len(embds)
 
     kmeans = KMeans(n_clusters=k, random_state=0, n_init=10).fit(embds)
 
-    # Find the closest data points to each centroid
+    # Find the closest data points to each centroid, as rows of the original matrix
     closest, _ = pairwise_distances_argmin_min(kmeans.cluster_centers_, embds)
-    return str(closest.tolist())
+    return str(first_rows[closest].tolist())
 
-gr.Interface(fn=get_centers, inputs=["text", "number"], outputs="text").launch(server_port=7876)
+gr.Interface(fn=get_centers, inputs="text", outputs="text").launch(server_port=7876)
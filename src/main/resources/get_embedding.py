@@ -15,27 +15,71 @@
 #
 
 
+import os
+os.environ["XDG_CACHE_HOME"]="/HF_CACHE"
+os.environ["HF_HOME"]="/HF_CACHE/huggingface"
+os.environ["HUGGINGFACE_HUB_CACHE"]="/HF_CACHE/huggingface/hub"
+os.environ["TRANSFORMERS_CACHE"]="/HF_CACHE/huggingface"
+
 #initialize models
 from infinity_emb import EngineArgs, AsyncEmbeddingEngine
 from infinity_emb import create_server
 import uvicorn
 import logging
 from fastapi.responses import JSONResponse
+from pydantic import BaseModel
+from transformers import AutoTokenizer
 
 logging.getLogger("infinity_emb").setLevel(logging.ERROR)
 
-engine_args = EngineArgs(
-    model_name_or_path="michaelfeil/bge-small-en-v1.5",
-    device="cpu",
-    engine="optimum",
-    served_model_name="bge-small",
-    compile=True,
-    batch_size=1
-)
+# bge-small is used for the top-k search, bge-micro and bge-large for the relatedness cascade
+engine_args_list = [
+    EngineArgs(
+        model_name_or_path="michaelfeil/bge-small-en-v1.5",
+        device="cpu",
+        engine="optimum",
+        served_model_name="bge-small",
+        compile=True,
+        batch_size=32
+    ),
+    EngineArgs(
+        model_name_or_path="SmartComponents/bge-micro-v2",
+        device="cpu",
+        engine="torch",
+        served_model_name="bge-micro",
+        pooling_method="cls",
+        batch_size=32
+    ),
+    EngineArgs(
+        model_name_or_path="BAAI/bge-large-en-v1.5",
+        device="cpu",
+        engine="torch",
+        served_model_name="bge-large",
+        batch_size=32
+    )
+]
 
-fastapi_app = create_server(engine_args_list=[engine_args])
+fastapi_app = create_server(engine_args_list=engine_args_list)
 @fastapi_app.head("/embeddings")
 def read_root_head():
     return JSONResponse({"message": "Infinity embedding is running"})
 
+# the bge models share the same vocabulary and are limited to 512 tokens, including [CLS] and [SEP]
+tokenizer = AutoTokenizer.from_pretrained("BAAI/bge-small-en-v1.5")
+MAX_TOKENS = 510
+
+class TruncateRequest(BaseModel):
+    input: list[str]
+
+@fastapi_app.post("/truncate")
+def truncate(request: TruncateRequest):
+    encodings = tokenizer(request.input, add_special_tokens=False, return_offsets_mapping=True)
+    truncated = []
+    for text, offsets in zip(request.input, encodings["offset_mapping"]):
+        if len(offsets) <= MAX_TOKENS:
+            truncated.append(text)
+        else:
+            truncated.append(text[:offsets[MAX_TOKENS - 1][1]])
+    return JSONResponse({"data": truncated})
+
 uvicorn.run(fastapi_app, host="127.0.0.1", port=7860)
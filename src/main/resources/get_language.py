@@ -26,12 +26,24 @@ logging.set_verbosity_error()
 pipe = pipeline("text-classification", model="papluca/xlm-roberta-base-language-detection")
 tokenizer_kwargs = {'truncation':True, 'max_length':512}
 
-def get_language(comment):
-    lang = pipe(comment, **tokenizer_kwargs)[0]
-    confidence = lang["score"]
-    lang = lang["label"]
-    if confidence <= 0.5:
+def to_language(prediction):
+    if prediction["score"] <= 0.5:
         return "unknown"
-    return lang
+    return prediction["label"]
+
+def get_language(comment):
+    return to_language(pipe(comment, **tokenizer_kwargs)[0])
+
+def get_languages(comments):
+    # the pipeline pads the comments of each batch to the same length
+    return [to_language(p) for p in pipe(comments, batch_size=16, **tokenizer_kwargs)]
+
+with gr.Blocks() as demo:
+    comment = gr.Textbox()
+    language = gr.Textbox()
+    comment.submit(get_language, inputs=comment, outputs=language, api_name="predict")
+    comments = gr.JSON()
+    languages = gr.JSON()
+    comments.change(get_languages, inputs=comments, outputs=languages, api_name="predict_batch")
 
-gr.Interface(fn=get_language, inputs=["text"], outputs="text").launch(server_port=7861)
+demo.launch(server_port=7861)
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledIfEnvironmentVariable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AgentGenerativeModelClientTest {
+    private static final String CODE = "public void hello() {\n    System.out.println(\"hello\");\n}";
+
+    @Test
+    void slotForEachConcurrentRequest() {
+        assertThat(AgentGenerativeModelClient.slotsPerReplica(1, 1)).isEqualTo(2);
+        assertThat(AgentGenerativeModelClient.slotsPerReplica(4, 1)).isEqualTo(4);
+        assertThat(AgentGenerativeModelClient.slotsPerReplica(8, 3)).isEqualTo(3);
+    }
+
+    @Test
+    @DisabledIfEnvironmentVariable(named = "CI", matches = "true")
+    void concurrentRecommendationsAreNotSerialized() {
+        int n = 4;
+        AgentGenerativeModelClient client = AgentGenerativeModelClient.getInstance(n);
+        // the prompt template is in the KV cache of a slot for both measurements
+        client.getRecommendations(CODE);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            client.getRecommendations(CODE);
+        }
+        long serial = System.nanoTime() - start;
+
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            start = System.nanoTime();
+            List<CompletableFuture<AgentGenerativeModelClient.GeneratedRecommendations>> generations = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                generations.add(CompletableFuture.supplyAsync(() -> client.getRecommendations(CODE), executor));
+            }
+            generations.forEach(CompletableFuture::join);
+            long concurrent = System.nanoTime() - start;
+
+            // generated in one batch by the slots of the server rather than queued on one slot
+            assertThat(concurrent).isLessThan(serial * 3 / 4);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
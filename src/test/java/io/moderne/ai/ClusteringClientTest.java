@@ -0,0 +1,57 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClusteringClientTest {
+
+    @Test
+    void centersAreIndicesOfTheCallersEmbeddings() {
+        List<float[]> embeddings = Arrays.asList(
+          new float[]{0, 0}, new float[]{0, 0}, new float[]{0, 1},
+          new float[]{10, 10}, new float[]{10, 10}, new float[]{10, 11});
+        int[] centers = ClusteringClient.getInstance().getCenters(embeddings, 2);
+        assertThat(Arrays.stream(centers).mapToObj(embeddings::get).mapToDouble(e -> e[0]))
+          .containsExactlyInAnyOrder(0.0, 10.0);
+    }
+
+    @Test
+    void writeLittleEndianMatrix() throws IOException {
+        EmbeddingMatrix embeddings = new EmbeddingMatrix();
+        embeddings.append(new float[]{1, 2, 3});
+        embeddings.append(new float[]{4, 5, 6});
+        Path matrix = ClusteringClient.writeMatrix(embeddings);
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(matrix)).order(ByteOrder.LITTLE_ENDIAN);
+            float[] floats = new float[bytes.remaining() / Float.BYTES];
+            bytes.asFloatBuffer().get(floats);
+            assertThat(floats).containsExactly(1, 2, 3, 4, 5, 6);
+        } finally {
+            Files.delete(matrix);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class EmbeddingMatrixTest {
+
+    @Test
+    void spillsToMappedFile() throws IOException {
+        // spills after 1024 rows of 3 floats
+        EmbeddingMatrix matrix = new EmbeddingMatrix(1024 * 3 * Float.BYTES);
+        for (int i = 0; i < 5000; i++) {
+            matrix.append(new float[]{i, i + 1, i + 2});
+        }
+        matrix.set(5, new float[]{-1, -1, -1});
+
+        assertThat(matrix.size()).isEqualTo(5000);
+        assertThat(matrix.getDims()).isEqualTo(3);
+        assertThat(matrix.get(4999)).containsExactly(4999, 5000, 5001);
+        assertThat(matrix.row(5).get(0)).isEqualTo(-1);
+        assertThat(matrix.nearest(new float[]{2500.2f, 2501, 2502})).isEqualTo(2500);
+        assertThat(matrix.distance(1, new float[]{1, 2, 5})).isCloseTo(3, within(1e-6));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        matrix.writeTo(Channels.newChannel(out));
+        ByteBuffer written = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(written.capacity()).isEqualTo(5000 * 3 * Float.BYTES);
+        assertThat(written.getFloat((4999 * 3 + 2) * Float.BYTES)).isEqualTo(5001);
+    }
+
+    @Test
+    void bulkDistances() {
+        EmbeddingMatrix matrix = new EmbeddingMatrix();
+        matrix.append(new float[]{0, 0});
+        matrix.append(new float[]{3, 4});
+        double[] distances = new double[2];
+        matrix.distances(new float[]{0, 0}, distances);
+        assertThat(distances).containsExactly(0, 5);
+    }
+
+    @Test
+    void distinctRows() {
+        EmbeddingMatrix matrix = new EmbeddingMatrix();
+        matrix.append(new float[]{1, 2});
+        matrix.append(new float[]{3, 4});
+        matrix.append(new float[]{1, 2});
+        matrix.append(new float[]{-0f, 0});
+        matrix.append(new float[]{0, 0});
+        assertThat(matrix.distinctRows()).containsExactly(0, 1, 3, 4);
+    }
+
+    @Test
+    void closeEmptiesSpilledMatrix() {
+        EmbeddingMatrix matrix = new EmbeddingMatrix(1024 * 3 * Float.BYTES);
+        for (int i = 0; i < 5000; i++) {
+            matrix.append(new float[]{i, i + 1, i + 2});
+        }
+        matrix.close();
+        assertThat(matrix.size()).isEqualTo(0);
+        assertThatThrownBy(() -> matrix.get(0)).isInstanceOf(IndexOutOfBoundsException.class);
+    }
+}
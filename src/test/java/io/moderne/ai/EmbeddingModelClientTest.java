@@ -18,14 +18,24 @@ package io.moderne.ai;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledIfEnvironmentVariable;
 
+import java.util.Collections;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
-@DisabledIfEnvironmentVariable(named = "CI", matches = "true")
 class EmbeddingModelClientTest {
 
     @Test
+    @DisabledIfEnvironmentVariable(named = "CI", matches = "true")
     void start() {
         EmbeddingModelClient client = EmbeddingModelClient.getInstance();
         assertThat(client.getEmbedding("test").length > 0);
     }
+
+    @Test
+    void onlyLongTextsAreTokenized() {
+        // indentation is not part of any token
+        String indented = String.join("\n", Collections.nCopies(100, "        x = 1;"));
+        assertThat(EmbeddingModelClient.mayExceedTokenLimit(indented)).isFalse();
+        assertThat(EmbeddingModelClient.mayExceedTokenLimit(indented + indented)).isTrue();
+    }
 }
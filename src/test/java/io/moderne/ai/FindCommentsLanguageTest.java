@@ -15,6 +15,7 @@
  */
 package io.moderne.ai;
 
+import io.moderne.ai.table.LanguageSummary;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledIfEnvironmentVariable;
 import org.openrewrite.DocumentExample;
@@ -22,6 +23,7 @@ import org.openrewrite.java.JavaParser;
 import org.openrewrite.test.RecipeSpec;
 import org.openrewrite.test.RewriteTest;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.openrewrite.java.Assertions.java;
 
 @DisabledIfEnvironmentVariable(named = "CI", matches = "true")
@@ -29,7 +31,7 @@ class FindCommentsLanguageTest implements RewriteTest {
 
     @Override
     public void defaults(RecipeSpec spec) {
-        spec.recipe(new FindCommentsLanguage());
+        spec.recipe(new FindCommentsLanguage(null, null));
     }
 
     @DocumentExample
@@ -71,4 +73,27 @@ class FindCommentsLanguageTest implements RewriteTest {
         );
     }
 
+    @Test
+    void aggregateOnly() {
+        rewriteRun(
+          spec -> spec.recipe(new FindCommentsLanguage(null, true))
+            .dataTable(LanguageSummary.Row.class, rows -> assertThat(rows)
+              .singleElement()
+              .satisfies(row -> {
+                  assertThat(row.getLanguage()).isEqualTo("en");
+                  assertThat(row.getComments()).isEqualTo(2);
+              })),
+          //language=java
+          java(
+            """
+              class Test {
+                  // This is a comment that explains what the method does
+                  void test() {
+                      // This is another comment about the body of the method
+                  }
+              }
+              """
+          )
+        );
+    }
 }
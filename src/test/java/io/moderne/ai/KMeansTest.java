@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KMeansTest {
+
+    @Test
+    void lloyd() {
+        assertOneCenterPerBlob(300);
+    }
+
+    @Test
+    void miniBatch() {
+        assertOneCenterPerBlob(KMeans.FULL_BATCH_LIMIT * 3);
+    }
+
+    private static void assertOneCenterPerBlob(int rows) {
+        int dims = 8;
+        float[] matrix = blobs(rows, dims);
+
+        KMeans kMeans = new KMeans(matrix, dims, 0);
+        int[] closest = kMeans.closestRows(kMeans.fit(3));
+        assertThat(Arrays.stream(closest).map(row -> row % 3).sorted().toArray())
+          .containsExactly(0, 1, 2);
+
+        KMeans again = new KMeans(matrix, dims, 0);
+        assertThat(again.closestRows(again.fit(3))).isEqualTo(closest);
+    }
+
+    /**
+     * Row {@code i} is drawn around the point whose coordinates are all {@code 10 * (i % 3)}.
+     */
+    private static float[] blobs(int rows, int dims) {
+        Random random = new Random(1);
+        float[] matrix = new float[rows * dims];
+        for (int r = 0; r < rows; r++) {
+            for (int d = 0; d < dims; d++) {
+                matrix[r * dims + d] = (float) (10 * (r % 3) + random.nextGaussian());
+            }
+        }
+        return matrix;
+    }
+}
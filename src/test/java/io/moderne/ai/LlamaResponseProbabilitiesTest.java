@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LlamaResponseProbabilitiesTest {
+
+    @Test
+    void yesRatherThanNo() {
+        // the same ratio, whether or not the grammar renormalized the probabilities
+        assertThat(response(" No", 0.3, 0.45).getRelatedProbability()).isCloseTo(0.4, within(1e-9));
+        assertThat(response(" No", 0.4, 0.6).getRelatedProbability()).isCloseTo(0.4, within(1e-9));
+        assertThat(response(" Yes", 0.6, 0.4).getRelatedProbability()).isCloseTo(0.6, within(1e-9));
+    }
+
+    private static AgentGenerativeModelClient.LlamaResponseProbabilities response(String content, double yes, double no) {
+        return new AgentGenerativeModelClient.LlamaResponseProbabilities(
+          Collections.singletonList(new AgentGenerativeModelClient.CompletionProbability(content, Arrays.asList(
+            new AgentGenerativeModelClient.TokenProbability(Math.max(yes, no), yes >= no ? " Yes" : " No"),
+            new AgentGenerativeModelClient.TokenProbability(Math.min(yes, no), yes >= no ? " No" : " Yes")
+          ))),
+          content, false, 1, true);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LlamaServerMetricsTest {
+
+    @Test
+    void parsePrometheusText() {
+        Map<String, Double> metrics = LlamaServerMetrics.parse(
+          "# HELP llamacpp:prompt_tokens_seconds Average prompt throughput in tokens/s.\n" +
+          "# TYPE llamacpp:prompt_tokens_seconds gauge\n" +
+          "llamacpp:prompt_tokens_seconds 512.5\n" +
+          "llamacpp:kv_cache_usage_ratio{slot=\"0\"} 0.25 1700000000000\n" +
+          "llamacpp:requests_deferred 2\n" +
+          "broken{slot=\"0\" 3\n");
+        assertThat(metrics)
+          .containsEntry("llamacpp:prompt_tokens_seconds", 512.5)
+          .containsEntry("llamacpp:kv_cache_usage_ratio", 0.25)
+          .containsEntry("llamacpp:requests_deferred", 2.0)
+          .doesNotContainKey("broken");
+    }
+
+    @Test
+    void recordingsOnlySeeTheirOwnRun() {
+        LlamaServerMetrics.Sample first = new LlamaServerMetrics.Sample("2024-01-01T00:00:00Z", 8080, 500, 20, 0.1, 1, 0);
+        LlamaServerMetrics.Sample second = new LlamaServerMetrics.Sample("2024-01-01T00:00:05Z", 8080, 450, 18, 0.2, 2, 1);
+        try (LlamaServerMetrics.Recording earlier = LlamaServerMetrics.record()) {
+            LlamaServerMetrics.publish(first);
+            try (LlamaServerMetrics.Recording later = LlamaServerMetrics.record()) {
+                LlamaServerMetrics.publish(second);
+                assertThat(later.drain()).containsExactly(second);
+            }
+            assertThat(earlier.drain()).containsExactly(first, second);
+
+            earlier.close();
+            LlamaServerMetrics.publish(first);
+            assertThat(earlier.drain()).isEmpty();
+        }
+    }
+
+    @Test
+    void abandonedRecordingsAreDropped() throws InterruptedException {
+        int open = LlamaServerMetrics.recordings();
+        // a run that fails before closing its recording
+        LlamaServerMetrics.record();
+        for (int i = 0; i < 100 && LlamaServerMetrics.recordings() > open; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(LlamaServerMetrics.recordings()).isEqualTo(open);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NgramLanguageDetectorTest {
+
+    @Test
+    void confidentOnCommonComments() {
+        NgramLanguageDetector detector = NgramLanguageDetector.getInstance();
+        assertThat(detector.detect("This method fetches all orders for a customer and sorts them by date"))
+          .satisfies(d -> {
+              assertThat(d.getLanguage()).isEqualTo("en");
+              assertThat(d.getConfidence()).isGreaterThan(LanguageDetectorModelClient.DEFAULT_FAST_PATH_CONFIDENCE);
+          });
+        assertThat(detector.detect("Récupère la liste des utilisateurs actifs dans la base").getLanguage()).isEqualTo("fr");
+        assertThat(detector.detect("R?cup?re la liste des utilisateurs actifs dans la base").getLanguage()).isEqualTo("fr");
+        assertThat(detector.detect("Berechnet den Gesamtbetrag der Rechnung").getLanguage()).isEqualTo("de");
+    }
+
+    @Test
+    void unsureOnShortOrUnknownText() {
+        NgramLanguageDetector detector = NgramLanguageDetector.getInstance();
+        assertThat(detector.detect("TODO").getConfidence()).isZero();
+        assertThat(detector.detect("Получает список активных пользователей").getConfidence()).isZero();
+    }
+
+    /**
+     * Texts that are not in the training samples, in the languages the detector identifies and in others,
+     * some of which it was trained to reject and some of which it has never seen.
+     */
+    @Test
+    void fastPathOnlyTakesLanguagesItIdentifies() throws IOException {
+        NgramLanguageDetector detector = NgramLanguageDetector.getInstance();
+        List<String> identified = Arrays.asList("en", "fr", "de", "es", "it", "pt", "nl");
+        int identifiedTexts = 0;
+        int accepted = 0;
+        try (InputStream is = requireNonNull(getClass().getResourceAsStream("/language_eval.tsv"));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(is, UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] languageAndText = line.split("\t", 2);
+                NgramLanguageDetector.Detection detection = detector.detect(languageAndText[1]);
+                if (detection.getConfidence() < LanguageDetectorModelClient.DEFAULT_FAST_PATH_CONFIDENCE) {
+                    if (identified.contains(languageAndText[0])) {
+                        identifiedTexts++;
+                    }
+                    continue;
+                }
+                assertThat(detection.getLanguage())
+                  .as(languageAndText[1])
+                  .isEqualTo(languageAndText[0]);
+                identifiedTexts++;
+                accepted++;
+            }
+        }
+        assertThat(accepted).isGreaterThanOrEqualTo(identifiedTexts * 9 / 10);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PersistentCacheTest {
+
+    @Test
+    void survivesReopening(@TempDir Path dir) {
+        new PersistentCache(dir, "language", 1024 * 1024).putString("// Licensed under the Apache License", "en");
+
+        PersistentCache cache = new PersistentCache(dir, "language", 1024 * 1024);
+        assertThat(cache.getString("// Licensed under the Apache License")).isEqualTo("en");
+        assertThat(cache.getString("// Licencié sous la licence Apache")).isNull();
+    }
+
+    @Test
+    void seesEntriesOfOtherProcesses(@TempDir Path dir) {
+        PersistentCache first = new PersistentCache(dir, "language", 1024 * 1024);
+        PersistentCache second = new PersistentCache(dir, "language", 1024 * 1024);
+
+        first.putString("a", "en");
+        second.putAllStrings(Collections.singletonMap("b", "fr"));
+        assertThat(first.getString("b")).isEqualTo("fr");
+        assertThat(second.getString("a")).isEqualTo("en");
+    }
+
+    @Test
+    void dropsIncompleteRecord(@TempDir Path dir) throws IOException {
+        new PersistentCache(dir, "language", 1024 * 1024).putString("a", "en");
+        Files.write(dir.resolve("language.0.cache"), new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        PersistentCache cache = new PersistentCache(dir, "language", 1024 * 1024);
+        cache.putString("b", "fr");
+        PersistentCache reopened = new PersistentCache(dir, "language", 1024 * 1024);
+        assertThat(reopened.getString("a")).isEqualTo("en");
+        assertThat(reopened.getString("b")).isEqualTo("fr");
+    }
+
+    @Test
+    void keepsRecentEntriesWithinItsSize(@TempDir Path dir) {
+        PersistentCache cache = new PersistentCache(dir, "language", 4096);
+        cache.putString("license", "en");
+        for (int i = 0; i < 1000; i++) {
+            Map<String, String> batch = new HashMap<>();
+            batch.put("comment " + i, "fr");
+            batch.put("other comment " + i, "de");
+            cache.putAllStrings(batch);
+            // found in the previous generation and copied to the current one
+            assertThat(cache.getString("license")).isEqualTo("en");
+        }
+
+        assertThat(cache.size()).isLessThanOrEqualTo(4096);
+        assertThat(cache.getString("comment 999")).isEqualTo("fr");
+        assertThat(cache.getString("comment 0")).isNull();
+        assertThat(new PersistentCache(dir, "language", 4096).getString("license")).isEqualTo("en");
+    }
+
+    @Test
+    void followsGenerationsStartedByOtherProcesses(@TempDir Path dir) {
+        PersistentCache first = new PersistentCache(dir, "language", 4096);
+        PersistentCache second = new PersistentCache(dir, "language", 4096);
+        for (int i = 0; i < 1000; i++) {
+            first.putString("comment " + i, "fr");
+        }
+
+        assertThat(second.getString("comment 999")).isEqualTo("fr");
+        second.putString("license", "en");
+        assertThat(first.getString("license")).isEqualTo("en");
+        assertThat(first.size()).isLessThanOrEqualTo(4096);
+    }
+}
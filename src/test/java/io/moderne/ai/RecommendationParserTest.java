@@ -0,0 +1,39 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecommendationParserTest {
+
+    @Test
+    void numberedList() {
+        assertThat(new RecommendationParser().feed("1. Use Java 17.\n2. Upgrade to version 2.5\n3: Use records\n").finish())
+          .containsExactly("Use Java 17.", "Upgrade to version 2.5", "Use records");
+    }
+
+    @Test
+    void itemsCompleteWhenNextMarkerIsSeen() {
+        RecommendationParser parser = new RecommendationParser();
+        parser.feed("1").feed(". Use X ").feed("2");
+        assertThat(parser.getItems()).isEmpty();
+        parser.feed(". Use");
+        assertThat(parser.getItems()).containsExactly("Use X");
+        assertThat(parser.feed(" Y").finish()).containsExactly("Use X", "Use Y");
+    }
+}
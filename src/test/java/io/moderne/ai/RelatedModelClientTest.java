@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RelatedModelClientTest {
+
+    @Test
+    void widerBandsDeferToModelsNotConsulted() {
+        // the first model was confident under the default bands, so the second was not consulted
+        assertThat(RelatedModelClient.classify(Arrays.asList(0.1, null), RelatedModelClient.DEFAULT_BANDS)).isEqualTo(1);
+        assertThat(RelatedModelClient.classify(Arrays.asList(0.1, null), Arrays.asList(
+          new RelatedModelClient.Band(0.05, 0.9),
+          new RelatedModelClient.Band(0.5, 0.6)
+        ))).isNull();
+        assertThat(RelatedModelClient.classify(Arrays.asList(0.1, 0.2), Arrays.asList(
+          new RelatedModelClient.Band(0.05, 0.9),
+          new RelatedModelClient.Band(0.5, 0.6)
+        ))).isEqualTo(1);
+    }
+
+    @Test
+    void bandForEachModel() {
+        assertThatThrownBy(() -> RelatedModelClient.classify(Arrays.asList(0.1, 0.2),
+          Collections.singletonList(new RelatedModelClient.Band(0.05, 0.9))))
+          .isInstanceOf(IllegalArgumentException.class);
+    }
+}
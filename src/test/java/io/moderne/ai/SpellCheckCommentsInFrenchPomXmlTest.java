@@ -28,7 +28,7 @@ class SpellCheckCommentsInFrenchPomXmlTest implements RewriteTest {
 
     @Override
     public void defaults(RecipeSpec spec) {
-        spec.recipe(new SpellCheckCommentsInFrenchPomXml());
+        spec.recipe(new SpellCheckCommentsInFrenchPomXml(null));
     }
 
     @DocumentExample
@@ -36,7 +36,7 @@ class SpellCheckCommentsInFrenchPomXmlTest implements RewriteTest {
     void pom() {
         rewriteRun(
           spec -> spec.recipe(
-            new SpellCheckCommentsInFrenchPomXml()
+            new SpellCheckCommentsInFrenchPomXml(null)
           ),
           pomXml(
             """
@@ -15,6 +15,7 @@
  */
 package io.moderne.ai;
 
+import io.moderne.ai.table.CommentRepairStatistics;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledIfEnvironmentVariable;
 import org.openrewrite.DocumentExample;
@@ -22,6 +23,7 @@ import org.openrewrite.java.JavaParser;
 import org.openrewrite.test.RecipeSpec;
 import org.openrewrite.test.RewriteTest;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.openrewrite.java.Assertions.java;
 
 @DisabledIfEnvironmentVariable(named = "CI", matches = "true")
@@ -29,7 +31,7 @@ class SpellCheckCommentsInFrenchTest implements RewriteTest {
 
     @Override
     public void defaults(RecipeSpec spec) {
-        spec.recipe(new SpellCheckCommentsInFrench());
+        spec.recipe(new SpellCheckCommentsInFrench(null));
     }
 
     @DocumentExample
@@ -169,4 +171,44 @@ class SpellCheckCommentsInFrenchTest implements RewriteTest {
         );
     }
 
+    @Test
+    void skipLanguageDetectionOfCommentsWithoutMisEncodedCharacters() {
+        rewriteRun(
+          spec -> spec.parser(JavaParser.fromJavaVersion())
+            .dataTable(CommentRepairStatistics.Row.class, rows -> {
+                assertThat(rows).hasSize(1);
+                assertThat(rows.get(0).getComments()).isEqualTo(3);
+                assertThat(rows.get(0).getSkipped()).isEqualTo(2);
+                assertThat(rows.get(0).getLanguageDetections()).isEqualTo(1);
+                assertThat(rows.get(0).getFixed()).isEqualTo(1);
+            }),
+          //language=java
+          java(
+            """
+              class Test {
+                  /**
+                   * Voici comment faire un test facile
+                   * et simplifi?
+                   */
+                  void test() {
+                      // c'est une valeur
+                      // la même valeur
+                  }
+              }
+              """,
+            """
+              class Test {
+                  /**
+                   * Voici comment faire un test facile
+                   * et simplifié
+                   */
+                  void test() {
+                      // c'est une valeur
+                      // la même valeur
+                  }
+              }
+              """
+          )
+        );
+    }
 }
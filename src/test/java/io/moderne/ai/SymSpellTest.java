@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SymSpellTest {
+    SymSpell symSpell;
+
+    @BeforeEach
+    void index(@TempDir Path dir) throws IOException {
+        Path dictionary = dir.resolve("fr.txt");
+        Files.write(dictionary, ("1\tla\t90000\n" +
+                                 "2\tvaleur\t5000\n" +
+                                 "3\tà\t20000\n" +
+                                 "4\ta\t15000\n" +
+                                 "5\têtre\t3000\n" +
+                                 "6\tsimplifie\t30\n" +
+                                 "7\tsimplifié\t40\n" +
+                                 "8\tnothing\t0\n").getBytes(UTF_8));
+        symSpell = SymSpell.open(dictionary, dir.resolve("fr.symspell"));
+    }
+
+    @Test
+    void closestSuggestionsByDecreasingCount() {
+        assertThat(symSpell.lookup("simplifi?", 1))
+          .extracting(SymSpell.Suggestion::getTerm)
+          .containsExactly("simplifié", "simplifie");
+        assertThat(symSpell.lookup("?", 1))
+          .extracting(SymSpell.Suggestion::getTerm)
+          .containsExactly("à", "a");
+        assertThat(symSpell.lookup("valeur", 2))
+          .extracting(SymSpell.Suggestion::getDistance)
+          .containsExactly(0);
+        assertThat(symSpell.lookup("nothin?", 1)).isEmpty();
+    }
+
+    @Test
+    void fixComment() {
+        SpellCheckerClient client = new SpellCheckerClient(symSpell);
+        assertThat(client.fixComment("la valeur doit ?tre simplifi?\n? la valeur ? Oui"))
+          .isEqualTo("la valeur doit être simplifié\nà la valeur ? Oui");
+    }
+}
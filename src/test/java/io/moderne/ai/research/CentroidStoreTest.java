@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import io.moderne.ai.EmbeddingMatrix;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.Assertions.within;
+
+class CentroidStoreTest {
+
+    @Test
+    void laterRepositoriesAreAssignedToStoredCentroids(@TempDir Path dir) {
+        Path file = dir.resolve("centroids.json");
+        EmbeddingMatrix first = matrix(
+          new float[]{0, 0}, new float[]{0, 1}, new float[]{10, 10}, new float[]{10, 11}, new float[]{10, 12});
+        List<CentroidStore.Sample> samples = new CentroidStore(file).sample(first, 2, embeddings -> new int[]{0, 3});
+        assertThat(samples).extracting(CentroidStore.Sample::getEmbedding).containsExactly(3, 0);
+        new CentroidStore(file).putRecommendations(samples.get(0).getCentroid(), Collections.singletonList("Use records"));
+
+        int reused = samples.get(0).getCentroid();
+        EmbeddingMatrix second = matrix(new float[]{1, 0}, new float[]{11, 11}, new float[]{10, 11});
+        samples = new CentroidStore(file).sample(second, 1, embeddings -> fail("Should not cluster again"));
+        assertThat(samples).singleElement().satisfies(sample -> {
+            assertThat(sample.getCentroid()).isEqualTo(reused);
+            assertThat(sample.getEmbedding()).isIn(1, 2);
+            assertThat(sample.getRecommendations()).containsExactly("Use records");
+        });
+    }
+
+    @Test
+    void moreCentersThanStoredCentroids(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("centroids.json");
+        new CentroidStore(file).sample(matrix(new float[]{0, 0}, new float[]{0, 1}, new float[]{10, 10}), 1,
+          embeddings -> new int[]{0});
+
+        List<CentroidStore.Sample> samples = new CentroidStore(file).sample(matrix(new float[]{0, 0}, new float[]{10, 10}), 2,
+          embeddings -> fail("Should not cluster again"));
+        assertThat(samples).extracting(CentroidStore.Sample::getEmbedding).containsExactlyInAnyOrder(0, 1);
+        try (Stream<Path> files = Files.list(dir)) {
+            assertThat(files.map(f -> f.getFileName().toString())).containsExactlyInAnyOrder("centroids.json", "centroids.json.lock");
+        }
+    }
+
+    @Test
+    void centroidsAreTheMeansOfTheirEmbeddings(@TempDir Path dir) {
+        Path file = dir.resolve("centroids.json");
+        new CentroidStore(file).sample(matrix(
+            new float[]{0, 0}, new float[]{0, 2}, new float[]{10, 10}, new float[]{10, 11}, new float[]{10, 12}), 2,
+          embeddings -> new int[]{0, 3});
+        assertThat(new CentroidStore(file).getCentroids()).satisfiesExactly(
+          centroid -> {
+              assertThat(centroid.getVector()).containsExactly(0, 0);
+              assertThat(centroid.getCount()).isEqualTo(2);
+          },
+          centroid -> {
+              assertThat(centroid.getVector()).containsExactly(10, 11);
+              assertThat(centroid.getCount()).isEqualTo(3);
+          });
+
+        new CentroidStore(file).sample(matrix(new float[]{3, 0}, new float[]{10, 14}), 2,
+          embeddings -> fail("Should not cluster again"));
+        assertThat(new CentroidStore(file).getCentroids()).satisfiesExactly(
+          centroid -> assertThat(centroid.getVector()).containsExactly(new float[]{1, 0}, within(1e-6f)),
+          centroid -> assertThat(centroid.getVector()).containsExactly(new float[]{10, 11.75f}, within(1e-6f)));
+
+        // the seed of a new centroid is averaged with the embeddings assigned to it
+        new CentroidStore(file).sample(matrix(new float[]{0, 20}, new float[]{0, 22}), 3,
+          embeddings -> fail("Should not cluster again"));
+        assertThat(new CentroidStore(file).getCentroids().get(2)).satisfies(centroid -> {
+            assertThat(centroid.getVector()).containsExactly(new float[]{0, 21.333334f}, within(1e-5f));
+            assertThat(centroid.getCount()).isEqualTo(3);
+        });
+    }
+
+    private static EmbeddingMatrix matrix(float[]... rows) {
+        EmbeddingMatrix matrix = new EmbeddingMatrix();
+        for (float[] row : rows) {
+            matrix.append(row);
+        }
+        return matrix;
+    }
+}
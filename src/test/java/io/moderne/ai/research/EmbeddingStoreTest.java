@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EmbeddingStoreTest {
+
+    @Test
+    void reopened(@TempDir Path dir) {
+        int generation = EmbeddingStore.beginRun(dir);
+        try (EmbeddingStore store = EmbeddingStore.open(dir, generation)) {
+            // more than the initial index holds
+            for (int i = 0; i < 3000; i++) {
+                store.put("void m" + i + "() {}", new float[]{i, -i});
+            }
+        }
+        try (EmbeddingStore store = EmbeddingStore.open(dir, generation)) {
+            assertThat(store.size()).isEqualTo(3000);
+            assertThat(store.get("void m42() {}")).containsExactly(42, -42);
+            assertThat(store.get("void n() {}")).isNull();
+            assertThatThrownBy(() -> store.put("void n() {}", new float[]{1}))
+              .isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    @Test
+    void evictsWhatTheLatestRunDidNotSee(@TempDir Path dir) {
+        int first = EmbeddingStore.beginRun(dir);
+        try (EmbeddingStore store = EmbeddingStore.open(dir, first)) {
+            for (int i = 0; i < 3000; i++) {
+                store.put("void m" + i + "() {}", new float[]{i, -i});
+            }
+        }
+
+        int second = EmbeddingStore.beginRun(dir);
+        try (EmbeddingStore store = EmbeddingStore.open(dir, second)) {
+            assertThat(store.size()).isEqualTo(3000);
+            for (int i = 0; i < 1000; i++) {
+                assertThat(store.get("void m" + i + "() {}")).isNotNull();
+            }
+            store.put("void n() {}", new float[]{7, 7});
+        }
+
+        int third = EmbeddingStore.beginRun(dir);
+        try (EmbeddingStore store = EmbeddingStore.open(dir, third)) {
+            assertThat(store.size()).isEqualTo(1001);
+            assertThat(store.get("void m999() {}")).containsExactly(999, -999);
+            assertThat(store.get("void n() {}")).containsExactly(7, 7);
+            assertThat(store.get("void m1000() {}")).isNull();
+        }
+    }
+}
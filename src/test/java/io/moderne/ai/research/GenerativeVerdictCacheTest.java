@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GenerativeVerdictCacheTest {
+
+    @Test
+    void literalsAndVariablesAreAbstracted() {
+        assertThat(GenerativeVerdictCache.normalize("client.post(urlA)"))
+          .isEqualTo(GenerativeVerdictCache.normalize("client.post( urlB )"))
+          .isEqualTo("v.post(v)");
+        assertThat(GenerativeVerdictCache.normalize("Unirest.post(\"https://a.com/\\\"x\").header(\"k\", 42L)"))
+          .isEqualTo("Unirest.post(\"?\").header(\"?\",0)");
+    }
+
+    @Test
+    void methodNamesAreKept() {
+        assertThat(GenerativeVerdictCache.normalize("client.post(url)"))
+          .isNotEqualTo(GenerativeVerdictCache.normalize("client.get(url)"));
+    }
+
+    @Test
+    void normalizedHitsReuseTheVerdict() {
+        GenerativeVerdictCache cache = new GenerativeVerdictCache();
+        cache.put("client.post(urlA)", null, 0.8);
+        GenerativeVerdictCache.Hit hit = cache.lookup("client.post(urlB)", null, 0);
+        assertThat(hit).isNotNull();
+        assertThat(hit.getProbability()).isEqualTo(0.8);
+        assertThat(hit.isNearDuplicate()).isFalse();
+    }
+}
@@ -15,10 +15,15 @@
  */
 package io.moderne.ai.research;
 
+import io.moderne.ai.table.Embeddings;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
 import org.openrewrite.test.RewriteTest;
 
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.openrewrite.java.Assertions.java;
 
 @DisabledIfEnvironmentVariable(named = "CI", matches = "true")
@@ -26,7 +31,7 @@ class GetCodeEmbeddingTest implements RewriteTest {
 
     @Test
     void methods() {
-        rewriteRun(spec -> spec.recipe(new GetCodeEmbedding("methods")),
+        rewriteRun(spec -> spec.recipe(new GetCodeEmbedding("methods", null, null)),
           java(
             """
               public class Foo {
@@ -40,7 +45,7 @@ class GetCodeEmbeddingTest implements RewriteTest {
 
     @Test
     void classes() {
-        rewriteRun(spec -> spec.recipe(new GetCodeEmbedding("classes")),
+        rewriteRun(spec -> spec.recipe(new GetCodeEmbedding("classes", null, null)),
           java(
             """
               public class Foo {
@@ -51,4 +56,24 @@ class GetCodeEmbeddingTest implements RewriteTest {
               """)
         );
     }
+
+    @Test
+    void incrementalReusesUnchangedMethods(@TempDir Path store) {
+        String source = """
+          public class Bar {
+              public void unchanged(){
+                  System.out.println("unchanged");
+              }
+          }
+          """;
+        rewriteRun(spec -> spec.recipe(new GetCodeEmbedding("methods", null, store.toString())),
+          java(source)
+        );
+        rewriteRun(spec -> spec.recipe(new GetCodeEmbedding("methods", null, store.toString()))
+            .dataTable(Embeddings.Row.class, rows -> assertThat(rows)
+              .singleElement()
+              .satisfies(row -> assertThat(row.isReused()).isTrue())),
+          java(source)
+        );
+    }
 }
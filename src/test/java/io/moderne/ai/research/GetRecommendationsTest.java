@@ -26,7 +26,7 @@ class GetRecommendationsTest implements RewriteTest {
     @Test
     void methods() {
         rewriteRun(
-          spec -> spec.recipe(new GetRecommendations(false, 3)),
+          spec -> spec.recipe(new GetRecommendations(false, 3, null, null, null, null)),
           //language=java
           java(
             """
@@ -52,7 +52,7 @@ class GetRecommendationsTest implements RewriteTest {
     @Test
     void randomSampling() {
         rewriteRun(
-          spec -> spec.recipe(new GetRecommendations(true, 3)),
+          spec -> spec.recipe(new GetRecommendations(true, 3, null, null, null, null)),
           //language=java
           java(
             """
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MethodSamplerTest {
+
+    @Test
+    void keepsEveryMethodWithoutBudget() {
+        MethodSampler sampler = new MethodSampler(Long.MAX_VALUE, method -> new float[384]);
+        for (int i = 0; i < 1000; i++) {
+            sampler.offer("A.java", "m" + i, "void m" + i + "() {}");
+        }
+        assertThat(sampler.getMethods()).hasSize(1000);
+        assertThat(sampler.getMethods().get(0))
+          .isEqualTo(new MethodSampler.MethodRef("A.java", "m0", MethodSampler.hash("void m0() {}")));
+    }
+
+    @Test
+    void boundedByBudget() {
+        AtomicInteger embedded = new AtomicInteger();
+        // 10 embeddings of 384 floats, with their references
+        MethodSampler sampler = new MethodSampler(10 * (384 * 4 + 256), method -> {
+            embedded.incrementAndGet();
+            return new float[384];
+        });
+        for (int i = 0; i < 10_000; i++) {
+            sampler.offer("A.java", "m" + i, "void m" + i + "() {}");
+        }
+        assertThat(sampler.getSeen()).isEqualTo(10_000);
+        assertThat(sampler.getMethods()).hasSize(10).hasSize(sampler.getEmbeddings().size());
+        // only the methods that entered the reservoir were embedded
+        assertThat(embedded.get()).isLessThan(200);
+        // the sample spans the whole stream
+        assertThat(sampler.getMethods()).anySatisfy(ref -> assertThat(Integer.parseInt(ref.getName().substring(1))).isGreaterThan(5_000));
+    }
+
+    @Test
+    void textsOfSampledMethods() {
+        MethodSampler sampler = new MethodSampler(Long.MAX_VALUE, method -> new float[384]);
+        sampler.offer("A.java", "m", "void m() { System.out.println(\"é\"); }");
+        sampler.offer("A.java", "n", "void n() {}");
+        assertThat(sampler.getText(1)).isEqualTo("void n() {}");
+        assertThat(sampler.getText(0)).isEqualTo("void m() { System.out.println(\"é\"); }");
+    }
+
+    @Test
+    void closeDeletesTexts() {
+        MethodSampler sampler = new MethodSampler(Long.MAX_VALUE, method -> new float[384]);
+        sampler.offer("A.java", "m", "void m() {}");
+        sampler.close();
+        assertThatThrownBy(() -> sampler.getText(0)).isInstanceOf(IllegalStateException.class);
+        // the references to the sampled methods remain
+        assertThat(sampler.getMethods()).hasSize(1);
+    }
+}
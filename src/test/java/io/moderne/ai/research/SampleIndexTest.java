@@ -0,0 +1,40 @@
+/*
+ * Copyright 2024 the original author or authors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * https://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.moderne.ai.research;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SampleIndexTest {
+
+    @Test
+    void lookupByFileNameAndHash() {
+        String overload = MethodSampler.hash("void test(int i) {}");
+        SampleIndex index = SampleIndex.of(Arrays.asList(
+          new MethodSampler.MethodRef("A.java", "test", overload),
+          new MethodSampler.MethodRef("A.java", "test", overload),
+          new MethodSampler.MethodRef("B.java", "run", MethodSampler.hash("void run() {}"))));
+
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.mayContain("A.java", "test")).isTrue();
+        assertThat(index.mayContain("A.java", "run")).isFalse();
+        assertThat(index.contains("A.java", "test", overload)).isTrue();
+        assertThat(index.contains("A.java", "test", MethodSampler.hash("void test() {}"))).isFalse();
+    }
+}